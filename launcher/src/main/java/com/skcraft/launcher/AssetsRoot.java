@@ -6,19 +6,25 @@
 
 package com.skcraft.launcher;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.model.minecraft.Asset;
-import com.skcraft.launcher.model.minecraft.AssetsIndex;
+import com.skcraft.launcher.model.minecraft.CompactAssetsIndex;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
-import com.skcraft.launcher.persistence.Persistence;
+import com.skcraft.launcher.util.FileUtils;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -31,8 +37,12 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class AssetsRoot {
 
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final int THREAD_COUNT = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+
     @Getter
     private final File dir;
+    private final Map<File, LoadedIndex> loadedIndexes = new HashMap<File, LoadedIndex>();
 
     /**
      * Create a new instance.
@@ -60,10 +70,128 @@ public class AssetsRoot {
      * @return the file, which may not exist
      */
     public File getObjectPath(Asset asset) {
-        String hash = asset.getHash();
+        return getObjectPath(asset.getHash());
+    }
+
+    /**
+     * Get the local path for an asset with the given hash.
+     *
+     * @param hash the SHA-1 hash
+     * @return the file, which may not exist
+     */
+    public File getObjectPath(String hash) {
         return new File(dir, "objects/" + hash.substring(0, 2) + "/" + hash);
     }
 
+    /**
+     * Get the asset index for a version manifest. The index is parsed once
+     * and kept in memory while its file is unchanged, and a binary copy
+     * is kept next to the .json file so that it loads quickly next time.
+     *
+     * @param versionManifest the version manifest
+     * @return the index
+     * @throws FileNotFoundException if the index hasn't been downloaded
+     * @throws IOException on I/O error or if the index is corrupt
+     */
+    public CompactAssetsIndex loadIndex(@NonNull VersionManifest versionManifest) throws IOException {
+        File path = getIndexPath(versionManifest);
+        long length = path.length();
+        long lastModified = path.lastModified();
+
+        if (lastModified == 0) {
+            throw new FileNotFoundException(path.getAbsolutePath());
+        }
+
+        synchronized (loadedIndexes) {
+            LoadedIndex loaded = loadedIndexes.get(path);
+            if (loaded != null && loaded.matches(length, lastModified)) {
+                return loaded.index;
+            }
+        }
+
+        CompactAssetsIndex index = readBinaryIndex(path, length, lastModified);
+        if (index == null) {
+            InputStream in = new BufferedInputStream(new FileInputStream(path));
+            try {
+                index = CompactAssetsIndex.parseJson(in);
+            } finally {
+                in.close();
+            }
+            writeBinaryIndex(path, length, lastModified, index);
+        }
+
+        synchronized (loadedIndexes) {
+            loadedIndexes.put(path, new LoadedIndex(length, lastModified, index));
+        }
+        return index;
+    }
+
+    /**
+     * Remember an index that was just parsed while it was written to the
+     * index path of a version manifest, such as when it was downloaded.
+     *
+     * @param versionManifest the version manifest
+     * @param index the index
+     */
+    public void putIndex(@NonNull VersionManifest versionManifest, @NonNull CompactAssetsIndex index) {
+        File path = getIndexPath(versionManifest);
+        long length = path.length();
+        long lastModified = path.lastModified();
+
+        writeBinaryIndex(path, length, lastModified, index);
+        synchronized (loadedIndexes) {
+            loadedIndexes.put(path, new LoadedIndex(length, lastModified, index));
+        }
+    }
+
+    private static File getBinaryIndexPath(File path) {
+        return new File(path.getParentFile(), path.getName() + ".bin");
+    }
+
+    private static CompactAssetsIndex readBinaryIndex(File path, long length, long lastModified) {
+        File binaryPath = getBinaryIndexPath(path);
+        if (!binaryPath.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryPath)));
+            try {
+                // Only trust the copy if it was made from the .json file as it is now
+                if (in.readLong() != length || in.readLong() != lastModified) {
+                    return null;
+                }
+                return CompactAssetsIndex.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to read " + binaryPath.getAbsolutePath() + ", so the index will be parsed again", e);
+            return null;
+        }
+    }
+
+    private static void writeBinaryIndex(File path, long length, long lastModified, CompactAssetsIndex index) {
+        File binaryPath = getBinaryIndexPath(path);
+        File tempFile = new File(binaryPath.getParentFile(), binaryPath.getName() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                index.write(out);
+            } finally {
+                out.close();
+            }
+
+            Files.move(tempFile.toPath(), binaryPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write " + binaryPath.getAbsolutePath(), e);
+            tempFile.delete();
+        }
+    }
+
     /**
      * Create an instance of the assets tree builder, which copies the indexed
      * assets (identified by hashes) into a directory where the assets
@@ -77,8 +205,11 @@ public class AssetsRoot {
     public AssetsTreeBuilder createAssetsBuilder(@NonNull VersionManifest versionManifest) throws LauncherException {
         String indexId = versionManifest.getAssetId();
         File path = getIndexPath(versionManifest);
-        AssetsIndex index = Persistence.read(path, AssetsIndex.class, true);
-        if (index == null || index.getObjects() == null) {
+        CompactAssetsIndex index;
+        try {
+            index = loadIndex(versionManifest);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to load the asset index at " + path.getAbsolutePath(), e);
             throw new LauncherException("Missing index at " + path, tr("assets.missingIndex", path.getAbsolutePath()));
         }
         File treeDir = new File(dir, "virtual/" + indexId);
@@ -86,64 +217,198 @@ public class AssetsRoot {
         return new AssetsTreeBuilder(index, treeDir);
     }
 
+    /**
+     * Check whether the virtual tree at the given directory was completely
+     * built from an index with the given fingerprint.
+     *
+     * @param treeDir the tree directory
+     * @param fingerprint the fingerprint, as returned by {@link AssetsTreeBuilder#getFingerprint()}
+     * @return true if the tree is up to date
+     */
+    public boolean isTreeBuilt(@NonNull File treeDir, @NonNull String fingerprint) {
+        return fingerprint.equals(readMarker(new File(treeDir, COMPLETE_MARKER)));
+    }
+
+    private static String readMarker(File marker) {
+        try {
+            List<String> lines = Files.readAllLines(marker.toPath(), Charsets.UTF_8);
+            return !lines.isEmpty() ? lines.get(0) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class LoadedIndex {
+        private final long length;
+        private final long lastModified;
+        private final CompactAssetsIndex index;
+
+        private LoadedIndex(long length, long lastModified, CompactAssetsIndex index) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.index = index;
+        }
+
+        private boolean matches(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
     public class AssetsTreeBuilder implements ProgressObservable {
-        private final AssetsIndex index;
+        private final CompactAssetsIndex index;
         private final File destDir;
         private final int count;
-        private int processed = 0;
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile boolean supportsLinks = true;
+        private String fingerprint;
 
-        public AssetsTreeBuilder(AssetsIndex index, File destDir) {
+        public AssetsTreeBuilder(CompactAssetsIndex index, File destDir) {
             this.index = index;
             this.destDir = destDir;
-            count = index.getObjects().size();
+            count = index.size();
         }
 
         public File build() throws IOException, LauncherException {
+            File marker = new File(destDir, COMPLETE_MARKER);
+            String fingerprint = getFingerprint();
+
+            // The tree only has to be built again if the index has changed since it was last built
+            if (fingerprint.equals(readMarker(marker))) {
+                AssetsRoot.log.info("Asset virtual tree at '" + destDir.getAbsolutePath() + "' is up to date");
+                processed.set(count);
+                return destDir;
+            }
+
             AssetsRoot.log.info("Building asset virtual tree at '" + destDir.getAbsolutePath() + "'...");
+            marker.delete();
 
-            boolean supportsLinks = true;
-            for (Map.Entry<String, Asset> entry : index.getObjects().entrySet()) {
-                File objectPath = getObjectPath(entry.getValue());
-                File virtualPath = new File(destDir, entry.getKey());
-                virtualPath.getParentFile().mkdirs();
-                if (!virtualPath.exists()) {
-                    log.log(Level.INFO, "Copying {0} to {1}...", new Object[] {
-                            objectPath.getAbsolutePath(), virtualPath.getAbsolutePath()});
-
-                    if (!objectPath.exists()) {
-                        String message = tr("assets.missingObject", objectPath.getAbsolutePath());
-                        throw new LauncherException("Missing object " + objectPath.getAbsolutePath(), message);
-                    }
+            // Create each directory once, rather than once per file
+            Set<File> parents = new HashSet<File>();
+            for (int i = 0; i < count; i++) {
+                parents.add(new File(destDir, index.getName(i)).getParentFile());
+            }
+            for (File parent : parents) {
+                parent.mkdirs();
+            }
 
-                    if (supportsLinks) {
-                        try {
-                            Files.createLink(virtualPath.toPath(), objectPath.toPath());
-                        } catch (UnsupportedOperationException e) {
-                            supportsLinks = false;
+            ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (int i = 0; i < count; i++) {
+                    final int asset = i;
+                    futures.add(executor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            String hash = index.getHash(asset);
+                            install(getObjectPath(hash), new File(destDir, index.getName(asset)), hash);
+                            processed.incrementAndGet();
+                            return null;
                         }
-                    }
+                    }));
+                }
 
-                    if (!supportsLinks) {
-                        Files.copy(objectPath.toPath(), virtualPath.toPath());
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof LauncherException) {
+                            throw (LauncherException) cause;
+                        } else if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        }
+                        throw new IOException("Failed to build the asset virtual tree", cause);
                     }
                 }
-                processed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while building the asset virtual tree");
+            } finally {
+                executor.shutdownNow();
             }
 
+            Files.write(marker.toPath(), Collections.singletonList(fingerprint), Charsets.UTF_8);
             return destDir;
         }
 
+        private void install(File objectPath, File virtualPath, String hash) throws IOException, LauncherException {
+            if (!objectPath.exists()) {
+                String message = tr("assets.missingObject", objectPath.getAbsolutePath());
+                throw new LauncherException("Missing object " + objectPath.getAbsolutePath(), message);
+            }
+
+            if (virtualPath.exists()) {
+                // The tree is being rebuilt because the index changed, so the asset may now be a different object
+                if (isCurrent(objectPath, virtualPath, hash)) {
+                    return;
+                }
+
+                log.log(Level.FINE, "Replacing out of date {0}", virtualPath.getAbsolutePath());
+                Files.delete(virtualPath.toPath());
+            }
+
+            log.log(Level.FINE, "Copying {0} to {1}...", new Object[] {
+                    objectPath.getAbsolutePath(), virtualPath.getAbsolutePath()});
+
+            if (supportsLinks) {
+                try {
+                    Files.createLink(virtualPath.toPath(), objectPath.toPath());
+                    return;
+                } catch (UnsupportedOperationException e) {
+                    supportsLinks = false;
+                } catch (FileAlreadyExistsException e) {
+                    // Another launch is building the same tree
+                    return;
+                }
+            }
+
+            Files.copy(objectPath.toPath(), virtualPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private boolean isCurrent(File objectPath, File virtualPath, String hash) throws IOException {
+            // A link to the object is cheap to check, but a copy has to be hashed
+            if (Files.isSameFile(objectPath.toPath(), virtualPath.toPath())) {
+                return true;
+            }
+
+            return virtualPath.length() == objectPath.length()
+                    && FileUtils.getShaHash(virtualPath).equalsIgnoreCase(hash);
+        }
+
+        /**
+         * Get a hash of every path in the index and the object it points to.
+         *
+         * @return the fingerprint
+         */
+        public String getFingerprint() {
+            if (fingerprint != null) {
+                return fingerprint;
+            }
+
+            // The index is already sorted by path
+            Hasher hasher = Hashing.sha1().newHasher();
+            for (int i = 0; i < count; i++) {
+                hasher.putString(index.getName(i), Charsets.UTF_8);
+                hasher.putByte((byte) 0);
+                hasher.putString(index.getHash(i), Charsets.UTF_8);
+                hasher.putByte((byte) 0);
+            }
+            fingerprint = hasher.hash().toString();
+            return fingerprint;
+        }
+
         @Override
         public double getProgress() {
             if (count == 0) {
                 return -1;
             } else {
-                return processed / (double) count;
+                return processed.get() / (double) count;
             }
         }
 
         @Override
         public String getStatus() {
+            int processed = this.processed.get();
             if (count == 0) {
                 return tr("assets.expanding1", count, count - processed);
             } else {
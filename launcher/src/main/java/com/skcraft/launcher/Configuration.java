@@ -39,6 +39,9 @@ public class Configuration {
     private boolean serverEnabled = false;
     private String serverHost;
     private int serverPort = 25565;
+    private boolean prefetchUpdates = true;
+    private int prefetchSpeedLimit = 1024; // KiB/s, 0 for no limit
+    private boolean collectSharedFiles = false;
 
     @Override
     public boolean equals(Object o) {
@@ -135,10 +135,10 @@ public class InstanceList {
 
                 PackageList packages = HttpRequest
                         .get(packagesURL)
+                        .useCache(launcher.getHttpCache())
                         .execute()
                         .expectResponseCode(200)
-                        .returnContent()
-                        .asJson(PackageList.class);
+                        .returnJson(PackageList.class);
 
                 if (packages.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
                     throw new LauncherException("Update required", SharedLocale.tr("errors.updateRequiredError"));
@@ -6,6 +6,8 @@
 
 package com.skcraft.launcher;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.skcraft.concurrency.ObservableFuture;
 import com.skcraft.launcher.dialog.ProgressDialog;
 import com.skcraft.launcher.swing.SwingHelper;
@@ -60,6 +62,19 @@ public class InstanceTasks {
         ProgressDialog.showProgress(window, future, SharedLocale.tr("launcher.checkingTitle"), SharedLocale.tr("launcher.checkingStatus"));
         SwingHelper.addErrorDialogCallback(window, future);
 
+        // Now that we know which instances have updates, start fetching them
+        Futures.addCallback(future, new FutureCallback<InstanceList>() {
+            @Override
+            public void onSuccess(InstanceList result) {
+                launcher.getUpdatePrefetcher().schedule();
+                launcher.getSharedFilesCollector().schedule();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+
         return future;
     }
 
@@ -14,12 +14,16 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.skcraft.launcher.auth.*;
 import com.skcraft.launcher.launch.LaunchSupervisor;
+import com.skcraft.launcher.launch.runtime.JavaRuntimeRegistry;
 import com.skcraft.launcher.model.minecraft.Library;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.swing.SwingHelper;
+import com.skcraft.launcher.update.SharedFilesCollector;
 import com.skcraft.launcher.update.UpdateManager;
+import com.skcraft.launcher.update.UpdatePrefetcher;
 import com.skcraft.launcher.util.Environment;
+import com.skcraft.launcher.util.HttpCache;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SharedLocale;
 import com.skcraft.launcher.util.SimpleLogFormatter;
@@ -63,8 +67,14 @@ public final class Launcher {
     @Getter private final Configuration config;
     @Getter private final AccountList accounts;
     @Getter private final AssetsRoot assets;
+    @Getter private final ObjectsRoot objects;
+    @Getter private final NativesRoot natives;
+    @Getter private final HttpCache httpCache;
+    @Getter private final JavaRuntimeRegistry runtimeRegistry;
     @Getter private final LaunchSupervisor launchSupervisor = new LaunchSupervisor(this);
     @Getter private final UpdateManager updateManager = new UpdateManager(this);
+    @Getter private final UpdatePrefetcher updatePrefetcher = new UpdatePrefetcher(this);
+    @Getter private final SharedFilesCollector sharedFilesCollector = new SharedFilesCollector(this);
     @Getter private final InstanceTasks instanceTasks = new InstanceTasks(this);
     private final Environment env = Environment.getInstance();
 
@@ -93,6 +103,10 @@ public final class Launcher {
         this.properties = LauncherUtils.loadProperties(Launcher.class, "launcher.properties", "com.skcraft.launcher.propertiesFile");
         this.instances = new InstanceList(this);
         this.assets = new AssetsRoot(new File(baseDir, "assets"));
+        this.objects = new ObjectsRoot(new File(baseDir, "objects"), new File(baseDir, "cache/objects.json"));
+        this.natives = new NativesRoot(new File(baseDir, "natives"));
+        this.httpCache = new HttpCache(new File(baseDir, "cache/http"));
+        this.runtimeRegistry = new JavaRuntimeRegistry(new File(baseDir, "cache/runtimes.json"));
         this.config = Persistence.load(new File(configDir, "config.json"), Configuration.class);
         this.accounts = Persistence.load(new File(configDir, "accounts.dat"), AccountList.class);
 
@@ -102,6 +116,14 @@ public final class Launcher {
             @Override
             public void run() {
                 cleanupExtractDir();
+                natives.cleanup();
+            }
+        });
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                runtimeRegistry.refresh();
             }
         });
 
@@ -198,6 +220,25 @@ public final class Launcher {
         return new File(getBaseDir(), "temp");
     }
 
+    /**
+     * Get the directory to store launch traces.
+     *
+     * @return the traces directory
+     */
+    public File getTracesDir() {
+        return new File(getBaseDir(), "traces");
+    }
+
+    /**
+     * Get the directory to store files downloaded ahead of an update
+     * while they are being downloaded.
+     *
+     * @return the prefetch directory
+     */
+    public File getPrefetchDir() {
+        return new File(getTemporaryDir(), "prefetch");
+    }
+
     /**
      * Get the directory to store temporary install files.
      *
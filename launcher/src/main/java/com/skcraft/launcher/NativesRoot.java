@@ -0,0 +1,289 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.skcraft.launcher.install.ZipExtract;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.google.common.io.Files.asByteSource;
+
+/**
+ * Stores extracted native libraries so that they only have to be unpacked
+ * once, instead of on every launch.
+ * </p>
+ * Each native library is extracted into its own directory, keyed by the
+ * library's path, hash and exclude list. A launch then gets a merged
+ * directory for its exact set of libraries, which is also kept around, so
+ * launching the same instance again reuses the same directory. Directories
+ * in use by a running game are leased and never cleaned up.
+ */
+@Log
+public class NativesRoot {
+
+    private static final String COMPLETE_MARKER = ".complete";
+    private static final long UNUSED_EXPIRY = TimeUnit.DAYS.toMillis(14);
+    private static final long TEMP_EXPIRY = TimeUnit.HOURS.toMillis(1);
+
+    @Getter
+    private final File dir;
+    private final Map<File, Integer> leases = new HashMap<File, Integer>();
+    private volatile boolean supportsLinks = true;
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory to store natives in
+     */
+    public NativesRoot(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get a directory containing the given native libraries, extracting
+     * any that haven't been extracted before. The directory stays in place
+     * until the returned lease is closed.
+     *
+     * @param libraries the native libraries, in classpath order
+     * @return a lease on the directory
+     * @throws IOException on I/O error
+     */
+    public synchronized Lease prepare(@NonNull List<NativeLibrary> libraries) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        List<File> extracted = new ArrayList<File>();
+        for (NativeLibrary library : libraries) {
+            String key = library.getKey();
+            keys.add(key);
+            extracted.add(extract(library, new File(dir, "libs/" + key)));
+        }
+
+        File setDir = new File(dir, "sets/" + hash(Joiner.on('\n').join(keys)));
+        if (!isComplete(setDir)) {
+            merge(extracted, setDir);
+        }
+        touch(setDir);
+
+        Integer count = leases.get(setDir);
+        leases.put(setDir, count != null ? count + 1 : 1);
+        return new Lease(setDir);
+    }
+
+    /**
+     * Remove extracted natives that haven't been used in a while.
+     */
+    public synchronized void cleanup() {
+        log.info("Cleaning up unused natives...");
+
+        long now = System.currentTimeMillis();
+        for (String type : new String[] { "libs", "sets" }) {
+            File[] dirs = new File(dir, type).listFiles();
+            if (dirs == null) {
+                continue;
+            }
+
+            for (File dir : dirs) {
+                if (leases.containsKey(dir)) {
+                    continue;
+                }
+
+                File marker = new File(dir, COMPLETE_MARKER);
+                boolean expired = marker.exists()
+                        ? now - marker.lastModified() > UNUSED_EXPIRY
+                        : now - dir.lastModified() > TEMP_EXPIRY;
+
+                if (expired) {
+                    log.info("Removing " + dir.getAbsolutePath() + "...");
+                    try {
+                        FileUtils.deleteDirectory(dir);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Failed to delete " + dir.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void release(File setDir) {
+        Integer count = leases.get(setDir);
+        if (count == null || count <= 1) {
+            leases.remove(setDir);
+        } else {
+            leases.put(setDir, count - 1);
+        }
+    }
+
+    private File extract(NativeLibrary library, File target) throws IOException {
+        if (isComplete(target)) {
+            touch(target);
+            return target;
+        }
+
+        log.info("Extracting natives from " + library.getFile().getAbsolutePath() + "...");
+
+        File tempDir = createTempDir(target);
+        try {
+            ZipExtract zipExtract = new ZipExtract(asByteSource(library.getFile()), tempDir);
+            zipExtract.setExclude(library.getExclude());
+            zipExtract.run();
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(tempDir);
+            throw new IOException("Failed to extract " + library.getFile().getAbsolutePath(), e);
+        }
+
+        commit(tempDir, target);
+        return target;
+    }
+
+    private void merge(List<File> sources, File target) throws IOException {
+        File tempDir = createTempDir(target);
+        try {
+            // Later libraries win, just as if they were all extracted into one directory in order
+            for (File source : sources) {
+                mergeInto(source, tempDir);
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(tempDir);
+            throw e;
+        }
+
+        commit(tempDir, target);
+    }
+
+    private void mergeInto(File source, File target) throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            File dest = new File(target, file.getName());
+            if (file.isDirectory()) {
+                dest.mkdirs();
+                mergeInto(file, dest);
+            } else if (!file.getName().equals(COMPLETE_MARKER)) {
+                link(file, dest);
+            }
+        }
+    }
+
+    private void link(File source, File target) throws IOException {
+        target.delete();
+
+        if (supportsLinks) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                return;
+            } catch (UnsupportedOperationException e) {
+                supportsLinks = false;
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not link " + target.getAbsolutePath() + ", copying instead", e);
+            }
+        }
+
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static File createTempDir(File target) throws IOException {
+        File tempDir = new File(target.getParentFile(), target.getName() + "." + System.nanoTime() + ".tmp");
+        if (!tempDir.mkdirs()) {
+            throw new IOException("Failed to create " + tempDir.getAbsolutePath());
+        }
+        return tempDir;
+    }
+
+    private static void commit(File tempDir, File target) throws IOException {
+        new File(tempDir, COMPLETE_MARKER).createNewFile();
+
+        // Something incomplete may have been left behind by a crash
+        if (target.exists() && !isComplete(target)) {
+            FileUtils.deleteDirectory(target);
+        }
+
+        if (!tempDir.renameTo(target)) {
+            FileUtils.deleteQuietly(tempDir);
+            // Another launcher may have finished the same directory first
+            if (!isComplete(target)) {
+                throw new IOException("Failed to move natives into " + target.getAbsolutePath());
+            }
+        }
+    }
+
+    private static boolean isComplete(File dir) {
+        return new File(dir, COMPLETE_MARKER).exists();
+    }
+
+    private static void touch(File dir) {
+        new File(dir, COMPLETE_MARKER).setLastModified(System.currentTimeMillis());
+    }
+
+    private static String hash(String value) {
+        return Hashing.sha1().hashString(value, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * A native library to extract.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class NativeLibrary {
+        private File file;
+        private String path;
+        private String hash;
+        private List<String> exclude;
+
+        private String getKey() {
+            // Without a hash, the file's size and modification time will have to do
+            String version = !Strings.isNullOrEmpty(hash)
+                    ? hash.toLowerCase()
+                    : file.length() + "-" + file.lastModified();
+            List<String> exclude = this.exclude != null ? this.exclude : Collections.<String>emptyList();
+            return hash(path + "\n" + version + "\n" + Joiner.on('\n').join(exclude));
+        }
+    }
+
+    /**
+     * A lease on a directory of natives, which keeps it from being cleaned
+     * up until it is closed.
+     */
+    public class Lease implements Closeable {
+        @Getter
+        private final File dir;
+        private boolean closed;
+
+        private Lease(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(dir);
+            }
+        }
+    }
+
+}
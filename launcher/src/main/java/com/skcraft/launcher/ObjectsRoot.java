@@ -0,0 +1,187 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher;
+
+import com.google.common.collect.ImmutableSet;
+import com.skcraft.launcher.install.FileStateIndex;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Represents a directory that stores modpack objects shared between all
+ * instances, keyed by their SHA-1 hash. Files are stored once and then
+ * copied into each instance that needs them. Files that the game never
+ * writes to, such as mod JARs, are hard linked instead (if the file system
+ * supports links), because writing to a linked file would change the
+ * stored object and every other instance that uses it.
+ * </p>
+ * The state of each stored object is remembered, so that an object that
+ * hasn't changed since it was stored isn't hashed again.
+ */
+@Log
+public class ObjectsRoot {
+
+    private static final Set<String> LINKED_EXTENSIONS = ImmutableSet.of("jar", "zip", "litemod");
+
+    @Getter
+    private final File dir;
+    private final File statesFile;
+    private FileStateIndex states;
+
+    private volatile boolean supportsLinks = true;
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory to the objects folder
+     * @param statesFile the file to remember the state of stored objects in
+     */
+    public ObjectsRoot(@NonNull File dir, @NonNull File statesFile) {
+        this.dir = dir;
+        this.statesFile = statesFile;
+    }
+
+    /**
+     * Get the local path for an object with the given hash.
+     *
+     * @param hash the SHA-1 hash
+     * @return the file, which may not exist
+     */
+    public File getObjectPath(@NonNull String hash) {
+        hash = hash.toLowerCase();
+        return new File(dir, hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/" + hash);
+    }
+
+    /**
+     * Check whether an intact copy of the object is in the store. Objects
+     * that no longer match their hash (for example, because a linked copy
+     * was edited in place) are removed.
+     *
+     * @param hash the SHA-1 hash
+     * @return true if the object is available
+     * @throws IOException on I/O error
+     */
+    public boolean contains(@NonNull String hash) throws IOException {
+        File file = getObjectPath(hash);
+        String storedHash = getStates().getHash(file);
+        if (storedHash == null) {
+            return false;
+        }
+
+        if (storedHash.equalsIgnoreCase(hash)) {
+            return true;
+        }
+
+        log.warning("Removing corrupt shared object " + file.getAbsolutePath());
+        file.delete();
+        return false;
+    }
+
+    /**
+     * Add the given file to the store, moving it into place. If the object
+     * is already stored, the source file is deleted instead.
+     * </p>
+     * The file must already have been verified against the hash, which
+     * the downloader does while the file is being written.
+     *
+     * @param source the source file
+     * @param hash the SHA-1 hash
+     * @return the path to the stored object
+     * @throws IOException on I/O error
+     */
+    public File add(@NonNull File source, @NonNull String hash) throws IOException {
+        File object = getObjectPath(hash);
+
+        if (source.equals(object)) {
+            return object;
+        }
+
+        if (object.exists()) {
+            source.delete();
+            return object;
+        }
+
+        object.getParentFile().mkdirs();
+        if (!source.renameTo(object)) {
+            if (object.exists()) {
+                // Someone else stored the object before us
+                source.delete();
+                return object;
+            } else {
+                Files.move(source.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        getStates().record(object, hash);
+        return object;
+    }
+
+    /**
+     * Place a stored object at the given target path. The object is only
+     * linked if the target is a file that the game doesn't write to.
+     *
+     * @param hash the SHA-1 hash
+     * @param target the target file, which will be replaced
+     * @throws IOException on I/O error
+     */
+    public void materialize(@NonNull String hash, @NonNull File target) throws IOException {
+        File object = getObjectPath(hash);
+        target.getParentFile().mkdirs();
+        target.delete();
+
+        if (supportsLinks && isLinkable(target)) {
+            try {
+                Files.createLink(target.toPath(), object.toPath());
+                return;
+            } catch (UnsupportedOperationException e) {
+                supportsLinks = false;
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not link " + target.getAbsolutePath() + ", copying instead", e);
+            }
+        }
+
+        Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Save the state of the stored objects.
+     */
+    public void save() {
+        FileStateIndex states = getStates();
+        synchronized (states) {
+            try {
+                Persistence.write(statesFile, states);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to save " + statesFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    private synchronized FileStateIndex getStates() {
+        if (states == null) {
+            states = Persistence.read(statesFile, FileStateIndex.class);
+            states.setBaseDir(dir);
+        }
+        return states;
+    }
+
+    private static boolean isLinkable(File target) {
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        return dot != -1 && LINKED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+}
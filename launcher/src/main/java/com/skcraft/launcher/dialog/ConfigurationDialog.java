@@ -6,6 +6,9 @@
 
 package com.skcraft.launcher.dialog;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.skcraft.concurrency.ObservableFuture;
 import com.skcraft.launcher.Configuration;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.dialog.component.BetterComboBox;
@@ -14,7 +17,9 @@ import com.skcraft.launcher.launch.runtime.JavaRuntime;
 import com.skcraft.launcher.launch.runtime.JavaRuntimeFinder;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.swing.*;
+import com.skcraft.launcher.update.SharedFilesCollector;
 import com.skcraft.launcher.util.SharedLocale;
+import com.skcraft.launcher.util.SwingExecutor;
 import lombok.NonNull;
 
 import javax.swing.*;
@@ -30,6 +35,7 @@ import java.util.Arrays;
  */
 public class ConfigurationDialog extends JDialog {
 
+    private final Launcher launcher;
     private final Configuration config;
     private final ObjectSwingMapper mapper;
 
@@ -51,6 +57,10 @@ public class ConfigurationDialog extends JDialog {
     private final JPasswordField proxyPasswordText = new JPasswordField();
     private final FormPanel advancedPanel = new FormPanel();
     private final JTextField gameKeyText = new JTextField();
+    private final JCheckBox prefetchUpdatesCheck = new JCheckBox(SharedLocale.tr("options.prefetchUpdatesCheck"));
+    private final JSpinner prefetchSpeedLimitSpinner = new JSpinner();
+    private final JCheckBox collectSharedFilesCheck = new JCheckBox(SharedLocale.tr("options.collectSharedFilesCheck"));
+    private final JButton collectSharedFilesButton = new JButton(SharedLocale.tr("options.collectSharedFiles"));
     private final LinedBoxPanel buttonsPanel = new LinedBoxPanel(true);
     private final JButton okButton = new JButton(SharedLocale.tr("button.ok"));
     private final JButton cancelButton = new JButton(SharedLocale.tr("button.cancel"));
@@ -66,10 +76,11 @@ public class ConfigurationDialog extends JDialog {
     public ConfigurationDialog(Window owner, @NonNull Launcher launcher) {
         super(owner, ModalityType.DOCUMENT_MODAL);
 
+        this.launcher = launcher;
         this.config = launcher.getConfig();
         mapper = new ObjectSwingMapper(config);
 
-        JavaRuntime[] javaRuntimes = JavaRuntimeFinder.getAvailableRuntimes().toArray(new JavaRuntime[0]);
+        JavaRuntime[] javaRuntimes = launcher.getRuntimeRegistry().getRuntimes().toArray(new JavaRuntime[0]);
         DefaultComboBoxModel<JavaRuntime> model = new DefaultComboBoxModel<>(javaRuntimes);
 
         // Put the runtime from the config in the model if it isn't
@@ -101,6 +112,9 @@ public class ConfigurationDialog extends JDialog {
         mapper.map(proxyUsernameText, "proxyUsername");
         mapper.map(proxyPasswordText, "proxyPassword");
         mapper.map(gameKeyText, "gameKey");
+        mapper.map(prefetchUpdatesCheck, "prefetchUpdates");
+        mapper.map(prefetchSpeedLimitSpinner, "prefetchSpeedLimit");
+        mapper.map(collectSharedFilesCheck, "collectSharedFiles");
 
         mapper.copyFromObject();
     }
@@ -129,6 +143,10 @@ public class ConfigurationDialog extends JDialog {
         tabbedPane.addTab(SharedLocale.tr("options.proxyTab"), SwingHelper.alignTabbedPane(proxySettingsPanel));
 
         advancedPanel.addRow(new JLabel(SharedLocale.tr("options.gameKey")), gameKeyText);
+        advancedPanel.addRow(prefetchUpdatesCheck);
+        advancedPanel.addRow(new JLabel(SharedLocale.tr("options.prefetchSpeedLimit")), prefetchSpeedLimitSpinner);
+        advancedPanel.addRow(collectSharedFilesCheck);
+        advancedPanel.addRow(collectSharedFilesButton);
         SwingHelper.removeOpaqueness(advancedPanel);
         tabbedPane.addTab(SharedLocale.tr("options.advancedTab"), SwingHelper.alignTabbedPane(advancedPanel));
 
@@ -168,6 +186,13 @@ public class ConfigurationDialog extends JDialog {
             }
         });
 
+        collectSharedFilesButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                collectSharedFiles(true);
+            }
+        });
+
         jvmRuntime.addActionListener(e -> {
             // A little fun hack...
             if (jvmRuntime.getSelectedItem() == AddJavaRuntime.ADD_RUNTIME_SENTINEL) {
@@ -202,6 +227,48 @@ public class ConfigurationDialog extends JDialog {
         dispose();
     }
 
+    /**
+     * Find the shared files that no instance uses anymore and, after a dry
+     * run, ask whether to delete them.
+     *
+     * @param dryRun true to only find the files
+     */
+    private void collectSharedFiles(final boolean dryRun) {
+        ObservableFuture<SharedFilesCollector.Report> future = launcher.getSharedFilesCollector().collect(dryRun);
+
+        ProgressDialog.showProgress(this, future, SharedLocale.tr("sharedFiles.title"),
+                SharedLocale.tr(dryRun ? "sharedFiles.checkingStatus" : "sharedFiles.deletingStatus"));
+        SwingHelper.addErrorDialogCallback(this, future);
+
+        Futures.addCallback(future, new FutureCallback<SharedFilesCollector.Report>() {
+            @Override
+            public void onSuccess(SharedFilesCollector.Report result) {
+                String size = String.format("%.1f", result.getSize() / 1024.0 / 1024.0);
+
+                if (result.getFiles().isEmpty()) {
+                    SwingHelper.showMessageDialog(ConfigurationDialog.this, SharedLocale.tr("sharedFiles.nothingFound"),
+                            SharedLocale.tr("sharedFiles.title"), null, JOptionPane.INFORMATION_MESSAGE);
+                } else if (result.isDryRun()) {
+                    if (SwingHelper.confirmDialog(ConfigurationDialog.this,
+                            SharedLocale.tr("sharedFiles.confirmDelete", result.getFiles().size(), size,
+                                    result.getLibraries(), result.getVersions(), result.getAssets(), result.getObjects()),
+                            SharedLocale.tr("confirmTitle"))) {
+                        collectSharedFiles(false);
+                    }
+                } else {
+                    SwingHelper.showMessageDialog(ConfigurationDialog.this,
+                            SharedLocale.tr("sharedFiles.deleted", result.getFiles().size() - result.getFailures().size(),
+                                    size, result.getFailures().size()),
+                            SharedLocale.tr("sharedFiles.title"), null, JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        }, SwingExecutor.INSTANCE);
+    }
+
     static class JavaRuntimeFileFilter extends FileFilter {
         @Override
         public boolean accept(File f) {
@@ -2,10 +2,10 @@ package com.skcraft.launcher.dialog;
 
 import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.InstanceSettings;
+import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.dialog.component.BetterComboBox;
 import com.skcraft.launcher.launch.MemorySettings;
 import com.skcraft.launcher.launch.runtime.JavaRuntime;
-import com.skcraft.launcher.launch.runtime.JavaRuntimeFinder;
 import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.swing.FormPanel;
 import com.skcraft.launcher.swing.LinedBoxPanel;
@@ -14,10 +14,12 @@ import lombok.extern.java.Log;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.List;
 
 @Log
 public class InstanceSettingsDialog extends JDialog {
 	private final InstanceSettings settings;
+	private final List<JavaRuntime> javaRuntimes;
 
 	private final LinedBoxPanel formsPanel = new LinedBoxPanel(false);
 	private final FormPanel memorySettingsPanel = new FormPanel();
@@ -30,15 +32,19 @@ public class InstanceSettingsDialog extends JDialog {
 	private final JComboBox<JavaRuntime> javaRuntimeBox = new BetterComboBox<>();
 	private final JTextField javaArgsBox = new JTextField();
 
+	private final FormPanel launchPanel = new FormPanel();
+	private final JCheckBox enableClassDataSharing = new JCheckBox(SharedLocale.tr("instance.options.classDataSharing"));
+
 	private final LinedBoxPanel buttonsPanel = new LinedBoxPanel(true);
 	private final JButton okButton = new JButton(SharedLocale.tr("button.save"));
 	private final JButton cancelButton = new JButton(SharedLocale.tr("button.cancel"));
 
 	private boolean saved = false;
 
-	public InstanceSettingsDialog(Window owner, InstanceSettings settings) {
+	public InstanceSettingsDialog(Window owner, InstanceSettings settings, List<JavaRuntime> javaRuntimes) {
 		super(owner);
 		this.settings = settings;
+		this.javaRuntimes = javaRuntimes;
 
 		setTitle(SharedLocale.tr("instance.options.title"));
 		setModalityType(DEFAULT_MODALITY_TYPE);
@@ -52,14 +58,14 @@ public class InstanceSettingsDialog extends JDialog {
 		memorySettingsPanel.addRow(new JLabel(SharedLocale.tr("options.minMemory")), minMemorySpinner);
 		memorySettingsPanel.addRow(new JLabel(SharedLocale.tr("options.maxMemory")), maxMemorySpinner);
 
-		// TODO: Do we keep this list centrally somewhere? Or is actively refreshing good?
-		JavaRuntime[] javaRuntimes = JavaRuntimeFinder.getAvailableRuntimes().toArray(new JavaRuntime[0]);
-		javaRuntimeBox.setModel(new DefaultComboBoxModel<>(javaRuntimes));
+		javaRuntimeBox.setModel(new DefaultComboBoxModel<>(javaRuntimes.toArray(new JavaRuntime[0])));
 
 		runtimePanel.addRow(enableCustomRuntime);
 		runtimePanel.addRow(new JLabel(SharedLocale.tr("options.jvmRuntime")), javaRuntimeBox);
 		runtimePanel.addRow(new JLabel(SharedLocale.tr("options.jvmArguments")), javaArgsBox);
 
+		launchPanel.addRow(enableClassDataSharing);
+
 		okButton.setMargin(new Insets(0, 10, 0, 10));
 		buttonsPanel.addGlue();
 		buttonsPanel.addElement(okButton);
@@ -88,6 +94,7 @@ public class InstanceSettingsDialog extends JDialog {
 
 		formsPanel.addElement(memorySettingsPanel);
 		formsPanel.addElement(runtimePanel);
+		formsPanel.addElement(launchPanel);
 
 		add(formsPanel, BorderLayout.NORTH);
 		add(buttonsPanel, BorderLayout.SOUTH);
@@ -117,6 +124,7 @@ public class InstanceSettingsDialog extends JDialog {
 
 		javaRuntimeBox.setSelectedItem(settings.getRuntime());
 		javaArgsBox.setText(settings.getCustomJvmArgs());
+		enableClassDataSharing.setSelected(settings.isClassDataSharing());
 	}
 
 	private void save() {
@@ -137,11 +145,14 @@ public class InstanceSettingsDialog extends JDialog {
 			settings.setCustomJvmArgs(null);
 		}
 
+		settings.setClassDataSharing(enableClassDataSharing.isSelected());
+
 		saved = true;
 	}
 
-	public static boolean open(Window parent, Instance instance) {
-		InstanceSettingsDialog dialog = new InstanceSettingsDialog(parent, instance.getSettings());
+	public static boolean open(Window parent, Instance instance, Launcher launcher) {
+		InstanceSettingsDialog dialog = new InstanceSettingsDialog(parent, instance.getSettings(),
+				launcher.getRuntimeRegistry().getRuntimes());
 		dialog.setVisible(true);
 
 		if (dialog.saved) {
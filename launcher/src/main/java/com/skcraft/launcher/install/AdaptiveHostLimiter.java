@@ -0,0 +1,246 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.base.Ticker;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Limits how many downloads run against each host at once, and tunes each
+ * limit while downloads are running.
+ * </p>
+ * Limits follow an AIMD scheme: every successful request raises the limit
+ * by a fraction, so that it grows by about one per round of requests, and
+ * errors cut it by a factor. Servers asking us to slow down (429 or 503)
+ * are cut harder than other failures. Growth also pauses while small
+ * requests take much longer than the fastest seen, which means requests
+ * are queuing up at the server. Finally, throughput is measured in short
+ * windows, and if raising the limit made a host slower, the limit is
+ * pulled back.
+ */
+@Log
+public class AdaptiveHostLimiter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double ERROR_BACKOFF = 0.75;
+    private static final double THROTTLE_BACKOFF = 0.5;
+    private static final double SLOWDOWN_BACKOFF = 0.9;
+    private static final long SMALL_REQUEST_BYTES = 64 * 1024;
+    private static final double LATENCY_TOLERANCE = 3;
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    @Getter private final int initialLimit;
+    @Getter private final int maxLimit;
+    private final Ticker ticker;
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+    /**
+     * Create a new limiter.
+     *
+     * @param initialLimit the number of concurrent requests to start each host at
+     * @param maxLimit the most concurrent requests to allow to a single host
+     */
+    public AdaptiveHostLimiter(int initialLimit, int maxLimit) {
+        this(initialLimit, maxLimit, Ticker.systemTicker());
+    }
+
+    /**
+     * Create a new limiter that measures time with the given ticker.
+     *
+     * @param initialLimit the number of concurrent requests to start each host at
+     * @param maxLimit the most concurrent requests to allow to a single host
+     * @param ticker the ticker
+     */
+    AdaptiveHostLimiter(int initialLimit, int maxLimit, @NonNull Ticker ticker) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.initialLimit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.ticker = ticker;
+    }
+
+    /**
+     * Wait until a request to the URL's host is allowed.
+     *
+     * @param url the URL about to be requested
+     * @return a permit, which has to be released once the request is over
+     * @throws InterruptedException thrown on interruption
+     */
+    public Permit acquire(@NonNull URL url) throws InterruptedException {
+        Host host;
+        synchronized (hosts) {
+            host = hosts.get(url.getHost());
+            if (host == null) {
+                host = new Host(url.getHost());
+                hosts.put(url.getHost(), host);
+            }
+        }
+
+        host.acquire();
+        return new Permit(host);
+    }
+
+    /**
+     * Get the current limit for a host.
+     *
+     * @param hostName the host name
+     * @return the limit
+     */
+    public int getLimit(String hostName) {
+        synchronized (hosts) {
+            Host host = hosts.get(hostName);
+            return host != null ? host.getLimit() : initialLimit;
+        }
+    }
+
+    public class Permit {
+        private final Host host;
+        private final long start = ticker.read();
+        private boolean released;
+
+        private Permit(Host host) {
+            this.host = host;
+        }
+
+        /**
+         * Release the permit after a successful request.
+         *
+         * @param bytes the number of bytes transferred
+         */
+        public synchronized void success(long bytes) {
+            if (!released) {
+                released = true;
+                host.onSuccess(bytes, ticker.read() - start);
+            }
+        }
+
+        /**
+         * Release the permit after a failed request.
+         *
+         * @param responseCode the response code, or -1 if no response was received
+         */
+        public synchronized void failure(int responseCode) {
+            if (!released) {
+                released = true;
+                host.onFailure(responseCode);
+            }
+        }
+
+        /**
+         * Release the permit without reporting an outcome, such as when the
+         * download was interrupted. Does nothing if already released.
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                host.release();
+            }
+        }
+    }
+
+    private class Host {
+        private final String name;
+        private double limit = initialLimit;
+        private int inFlight;
+
+        private long windowStart = ticker.read();
+        private long windowBytes;
+        private double windowLimit = initialLimit;
+        private double lastThroughput = -1;
+        private double lastLimit;
+        private long lastDecrease = ticker.read() - WINDOW_NANOS;
+        private double minLatency = Double.MAX_VALUE;
+        private double latency = -1;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        private synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        private synchronized void acquire() throws InterruptedException {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+            inFlight++;
+        }
+
+        private synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        private synchronized void onSuccess(long bytes, long nanos) {
+            windowBytes += Math.max(0, bytes);
+
+            // The time taken by large requests is mostly transfer time, so only small ones say much about latency
+            if (bytes <= SMALL_REQUEST_BYTES) {
+                minLatency = Math.min(minLatency, nanos);
+                latency = latency < 0 ? nanos : latency + LATENCY_SMOOTHING * (nanos - latency);
+            }
+
+            boolean queuing = latency > minLatency * LATENCY_TOLERANCE;
+
+            // Only grow while the current limit is actually being used
+            if (inFlight >= (int) limit && !queuing) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            long now = ticker.read();
+            if (now - windowStart >= WINDOW_NANOS) {
+                double throughput = windowBytes / (double) (now - windowStart);
+                if (lastThroughput > 0 && windowLimit > lastLimit && throughput < lastThroughput * SLOWDOWN_BACKOFF) {
+                    decrease(SLOWDOWN_BACKOFF, now, "throughput dropped");
+                }
+                lastThroughput = throughput;
+                lastLimit = windowLimit;
+                windowLimit = limit;
+                windowStart = now;
+                windowBytes = 0;
+            }
+
+            release();
+        }
+
+        private synchronized void onFailure(int responseCode) {
+            long now = ticker.read();
+            if (responseCode == 429 || responseCode == 503) {
+                decrease(THROTTLE_BACKOFF, now, "server responded with " + responseCode);
+            } else {
+                decrease(ERROR_BACKOFF, now, responseCode > 0 ? "response code " + responseCode : "request failed");
+            }
+
+            release();
+        }
+
+        private void decrease(double factor, long now, String reason) {
+            // Failures tend to come in bursts, so only back off once per window
+            if (now - lastDecrease < WINDOW_NANOS) {
+                return;
+            }
+
+            lastDecrease = now;
+            double previous = limit;
+            limit = Math.max(1, limit * factor);
+            windowLimit = limit;
+
+            if ((int) previous != (int) limit) {
+                log.log(Level.INFO, "Reducing concurrent downloads to {0} from {1} to {2} ({3})",
+                        new Object[]{name, (int) previous, (int) limit, reason});
+            }
+        }
+    }
+
+}
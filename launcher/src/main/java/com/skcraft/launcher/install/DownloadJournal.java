@@ -0,0 +1,253 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.skcraft.launcher.persistence.Persistence;
+import com.skcraft.launcher.util.HttpRequest;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Keeps track of partially downloaded files in the installer's temporary
+ * directory, so that a download interrupted by closing the launcher (or
+ * by a crash) can pick up where it left off on the next update.
+ * </p>
+ * Each entry records where the file came from, what it is expected to be,
+ * and how many bytes of it are known to have reached the disk. The byte
+ * count is only raised after the file has been synced, so a partial file
+ * is always at least as long as its entry claims.
+ * </p>
+ * Several downloaders may share a directory (such as the updater and the
+ * self updater), so saving merges with the journal on disk under a file
+ * lock and only replaces the entries that were changed by this one. New
+ * byte counts are only saved every few seconds, and the rest are saved by
+ * {@link #flush()}.
+ */
+@Log
+@Data
+public class DownloadJournal {
+
+    private static final String FILENAME = "downloads.json";
+    private static final String LOCK_FILENAME = "downloads.json.lock";
+    private static final long COMMIT_SAVE_INTERVAL = 5000;
+
+    @JsonIgnore private File dir;
+    @JsonIgnore private final Set<String> changed = new HashSet<String>();
+    @JsonIgnore private long lastSave;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Load the journal for the given temporary directory.
+     *
+     * @param dir the temporary directory
+     * @return the journal
+     */
+    public static DownloadJournal load(@NonNull File dir) {
+        DownloadJournal journal = Persistence.read(new File(dir, FILENAME), DownloadJournal.class);
+        journal.setDir(dir);
+        if (journal.getEntries() == null) {
+            journal.setEntries(new HashMap<String, Entry>());
+        }
+
+        // Drop entries for partial files that have since been cleaned up
+        Iterator<String> it = journal.getEntries().keySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(dir, it.next()).exists()) {
+                it.remove();
+            }
+        }
+
+        return journal;
+    }
+
+    /**
+     * Get the resume details for a partial file if it was left behind by an
+     * earlier download of the same file. The partial file is truncated to the
+     * last length known to be on disk. Entries that don't match are dropped.
+     *
+     * @param file the partial file
+     * @param urls the URLs the file is going to be downloaded from
+     * @param size the expected size
+     * @param hash the expected SHA-1 hash, or null
+     * @return the resume details, or null if the download has to start over
+     */
+    public synchronized HttpRequest.PartialDownloadInfo resume(File file, List<URL> urls, long size, String hash) {
+        String key = getKey(file);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        boolean valid = entry.getCommitted() > 0
+                && entry.getSize() == size
+                && (hash != null ? hash.equalsIgnoreCase(entry.getHash()) : entry.getHash() == null)
+                && containsUrl(urls, entry.getUrl())
+                && file.length() >= entry.getCommitted();
+
+        if (valid) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(entry.getCommitted());
+                return new HttpRequest.PartialDownloadInfo(size, entry.getCommitted());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to prepare " + file.getAbsolutePath() + " for resuming", e);
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+
+        entries.remove(key);
+        save(key, true);
+        return null;
+    }
+
+    /**
+     * Record that a new download of the given file has started.
+     *
+     * @param file the partial file
+     * @param url the URL being downloaded from
+     * @param size the expected size
+     * @param hash the expected SHA-1 hash, or null
+     */
+    public synchronized void begin(File file, URL url, long size, String hash) {
+        Entry entry = new Entry();
+        entry.setUrl(url.toString());
+        entry.setSize(size);
+        entry.setHash(hash);
+        String key = getKey(file);
+        entries.put(key, entry);
+        save(key, true);
+    }
+
+    /**
+     * Record that the first given number of bytes of the file are on disk.
+     *
+     * @param file the partial file
+     * @param committed the number of bytes
+     */
+    public synchronized void commit(File file, long committed) {
+        String key = getKey(file);
+        Entry entry = entries.get(key);
+        if (entry != null && committed > entry.getCommitted()) {
+            entry.setCommitted(committed);
+            save(key, false);
+        }
+    }
+
+    /**
+     * Forget about a file, either because it finished downloading or
+     * because it was discarded.
+     *
+     * @param file the partial file
+     */
+    public synchronized void remove(File file) {
+        String key = getKey(file);
+        if (entries.remove(key) != null) {
+            save(key, true);
+        }
+    }
+
+    /**
+     * Save the changes that haven't been saved yet, such as the byte
+     * counts recorded since the last save.
+     */
+    public synchronized void flush() {
+        if (!changed.isEmpty()) {
+            write();
+        }
+    }
+
+    private String getKey(File file) {
+        return dir.toURI().relativize(file.toURI()).getPath();
+    }
+
+    private void save(String key, boolean now) {
+        changed.add(key);
+
+        // Byte counts are recorded often, and losing a few only means downloading a bit more again
+        if (now || System.currentTimeMillis() - lastSave >= COMMIT_SAVE_INTERVAL) {
+            write();
+        }
+    }
+
+    private void write() {
+        File file = new File(dir, FILENAME);
+
+        // A file lock is held by the whole process, so journals in this process also have to take turns
+        synchronized (DownloadJournal.class) {
+            RandomAccessFile lockFile = null;
+            try {
+                dir.mkdirs();
+                lockFile = new RandomAccessFile(new File(dir, LOCK_FILENAME), "rw");
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    DownloadJournal saved = Persistence.read(file, DownloadJournal.class, true);
+                    Map<String, Entry> merged = new HashMap<String, Entry>();
+                    if (saved != null && saved.getEntries() != null) {
+                        merged.putAll(saved.getEntries());
+                    }
+                    for (String changedKey : changed) {
+                        Entry entry = entries.get(changedKey);
+                        if (entry != null) {
+                            merged.put(changedKey, entry);
+                        } else {
+                            merged.remove(changedKey);
+                        }
+                    }
+
+                    DownloadJournal journal = new DownloadJournal();
+                    journal.setEntries(merged);
+                    Persistence.write(file, journal);
+                    changed.clear();
+                    lastSave = System.currentTimeMillis();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to write the download journal", e);
+            } finally {
+                closeQuietly(lockFile);
+            }
+        }
+    }
+
+    private static boolean containsUrl(List<URL> urls, String url) {
+        for (URL candidate : urls) {
+            if (candidate.toString().equals(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Data
+    public static class Entry {
+        private String url;
+        private long size;
+        private String hash;
+        private long committed;
+    }
+
+}
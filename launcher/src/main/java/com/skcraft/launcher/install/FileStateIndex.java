@@ -0,0 +1,137 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.skcraft.launcher.util.FileUtils;
+import lombok.Data;
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Remembers the SHA-1 hash of installed files along with their size,
+ * modification time and (where the file system has one) file key, so
+ * that files that haven't been touched since the last update can be
+ * confirmed without reading them.
+ * </p>
+ * A file that was modified too close to the time it was recorded could
+ * be changed again without its modification time moving, so such entries
+ * are not trusted and the file is hashed again the next time around.
+ */
+@Data
+public class FileStateIndex {
+
+    private static final long MODIFIED_TOLERANCE = 2000;
+
+    @JsonIgnore
+    private File baseDir;
+    private Map<String, FileState> files = new HashMap<String, FileState>();
+
+    /**
+     * Get the SHA-1 hash of a file, reading the file only if it has
+     * changed since it was last hashed.
+     *
+     * @param file the file
+     * @return the hash, or null if the file does not exist
+     * @throws IOException on I/O error
+     */
+    public String getHash(@NonNull File file) throws IOException {
+        String path = relativize(file);
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return null;
+        }
+
+        synchronized (this) {
+            FileState state = files.get(path);
+            if (state != null && state.matches(attributes)) {
+                return state.getHash();
+            }
+        }
+
+        String hash = FileUtils.getShaHash(file);
+        put(path, attributes, hash);
+        return hash;
+    }
+
+    /**
+     * Record the hash of a file that was just installed.
+     *
+     * @param file the file
+     * @param hash the SHA-1 hash of its contents
+     * @throws IOException on I/O error
+     */
+    public void record(@NonNull File file, @NonNull String hash) throws IOException {
+        put(relativize(file), Files.readAttributes(file.toPath(), BasicFileAttributes.class), hash);
+    }
+
+    /**
+     * Forget about files that are no longer part of the install.
+     *
+     * @param log the install log of the current install
+     */
+    public synchronized void retain(@NonNull InstallLog log) {
+        Iterator<String> it = files.keySet().iterator();
+        while (it.hasNext()) {
+            if (!log.has(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void put(String path, BasicFileAttributes attributes, String hash) {
+        FileState state = new FileState();
+        state.setSize(attributes.size());
+        state.setModified(attributes.lastModifiedTime().toMillis());
+        state.setKey(attributes.fileKey() != null ? attributes.fileKey().toString() : null);
+        state.setHash(hash.toLowerCase());
+        state.setChecked(System.currentTimeMillis());
+        files.put(path, state);
+    }
+
+    private synchronized void remove(String path) {
+        files.remove(path);
+    }
+
+    private String relativize(File child) {
+        // Must match the paths in the install log, which retain() is given
+        return InstallLog.relativize(checkNotNull(baseDir), child);
+    }
+
+    @Data
+    public static class FileState {
+        private long size;
+        private long modified;
+        private String key;
+        private String hash;
+        private long checked;
+
+        private boolean matches(BasicFileAttributes attributes) {
+            String key = attributes.fileKey() != null ? attributes.fileKey().toString() : null;
+            return hash != null
+                    && size == attributes.size()
+                    && modified == attributes.lastModifiedTime().toMillis()
+                    && (this.key == null || key == null || this.key.equals(key))
+                    && modified < checked - MODIFIED_TOLERANCE;
+        }
+    }
+
+}
@@ -7,6 +7,8 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.java.Log;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
 
 @RequiredArgsConstructor
 @Log
@@ -30,6 +32,16 @@ public class FileVerify implements InstallTask {
 		}
 	}
 
+	@Override
+	public Collection<File> getInputs() {
+		return Collections.singletonList(target);
+	}
+
+	@Override
+	public Collection<File> getOutputs() {
+		return Collections.emptyList();
+	}
+
 	@Override
 	public double getProgress() {
 		return -1;
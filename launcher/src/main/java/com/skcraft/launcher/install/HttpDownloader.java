@@ -14,7 +14,11 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.util.FileUtils;
 import com.skcraft.launcher.util.HttpRequest;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.Getter;
@@ -26,8 +30,13 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -35,22 +44,62 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class HttpDownloader implements Downloader {
 
+    private static final int INITIAL_HOST_LIMIT = 6;
+    private static final int MAX_STATUS_JOBS = 6;
+    private static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
     private final Random random = new Random();
     private final HashFunction hf = Hashing.sha1();
 
     private final File tempDir;
-    @Getter @Setter private int threadCount = 6;
+    @Getter @Setter private int threadCount = HttpRequest.MAX_CONNECTIONS_PER_HOST;
     @Getter @Setter private int retryDelay = 2000;
     @Getter @Setter private int tryCount = 3;
 
+    /**
+     * Files at least this large are fetched as several ranges in parallel
+     * when the server supports it.
+     */
+    @Getter @Setter private long segmentThreshold = 16 * 1024 * 1024;
+    @Getter @Setter private int segmentCount = 4;
+
+    /**
+     * Files at least this large are recorded in the download journal so that
+     * they can be resumed if the launcher is closed part way through.
+     */
+    @Getter @Setter private long journalThreshold = 1024 * 1024;
+
+    /**
+     * Limits the combined speed of all downloads, in bytes per second, or
+     * null for no limit. Segmented downloads are not limited, so set the
+     * segment threshold high when using a limit.
+     */
+    @Getter @Setter private RateLimiter rateLimiter;
+
+    /**
+     * The priority of the download threads.
+     */
+    @Getter @Setter private int threadPriority = Thread.NORM_PRIORITY;
+
+    /**
+     * Called from the download threads with the destination file of each
+     * download as soon as it has been downloaded and moved into place.
+     */
+    @Getter @Setter private volatile Callback<File> completionListener;
+
     private List<HttpDownloadJob> queue = new ArrayList<HttpDownloadJob>();
     private final Set<String> usedKeys = new HashSet<String>();
 
-    private final List<HttpDownloadJob> running = new ArrayList<HttpDownloadJob>();
-    private final List<HttpDownloadJob> failed = new ArrayList<HttpDownloadJob>();
-    private long downloaded = 0;
-    private long total = 0;
-    private int left = 0;
+    // Progress is polled by the UI while the jobs update it, so none of it is guarded by the lock
+    private final Queue<HttpDownloadJob> running = new ConcurrentLinkedQueue<HttpDownloadJob>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicInteger left = new AtomicInteger();
+    private volatile AdaptiveHostLimiter limiter;
+    private volatile ExecutorService segmentExecutor;
+    private volatile DownloadJournal journal;
 
     /**
      * Create a new downloader using the given executor.
@@ -78,20 +127,43 @@ public class HttpDownloader implements Downloader {
     }
 
     @Override
-    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+    public File download(@NonNull List<URL> urls, @NonNull String key, long size, String name) {
+        return download(urls, key, size, name, null);
+    }
+
+    /**
+     * Queue a download, verifying the downloaded file against the given hash
+     * as it is being written so that it doesn't have to be read back later.
+     *
+     * @param urls the URLs to try, in order
+     * @param key a key to distinguish the file with
+     * @param size the expected size, or an estimate
+     * @param name the name shown to the user
+     * @param hash the expected SHA-1 hash, or null to skip verification
+     * @return the path the file will be downloaded to
+     */
+    @Override
+    public synchronized File download(@NonNull List<URL> urls, @NonNull String key, long size, String name,
+                                      String hash) {
         if (urls.isEmpty()) {
             throw new IllegalArgumentException("Can't download empty list of URLs");
         }
 
-        String hash = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
-        hash = createUniqueKey(hash);
-        File tempFile = new File(tempDir, hash.substring(0, 2) + "/" + hash);
+        String id = hf.hashString(Strings.nullToEmpty(key) + urls.get(0), Charsets.UTF_8).toString();
+        id = createUniqueKey(id);
+        File tempFile = new File(tempDir, id.substring(0, 2) + "/" + id);
 
         // If the file is already downloaded (such as from before), then don't re-download
+        if (tempFile.exists() && hash != null && !isIntact(tempFile, hash)) {
+            log.warning("Discarding corrupt download " + tempFile.getAbsolutePath());
+            tempFile.delete();
+        }
+
         if (!tempFile.exists()) {
-            total += size;
-            left++;
-            queue.add(new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName()));
+            total.addAndGet(size);
+            left.incrementAndGet();
+            queued.incrementAndGet();
+            queue.add(new HttpDownloadJob(tempFile, urls, size, name != null ? name : tempFile.getName(), hash));
         }
 
         return tempFile;
@@ -100,9 +172,22 @@ public class HttpDownloader implements Downloader {
 
     @Override
     public File download(URL url, String key, long size, String name) {
+        return download(url, key, size, name, null);
+    }
+
+    @Override
+    public File download(URL url, String key, long size, String name, String hash) {
         List<URL> urls = new ArrayList<URL>();
         urls.add(url);
-        return download(urls, key, size, name);
+        return download(urls, key, size, name, hash);
+    }
+
+    private static boolean isIntact(File file, String hash) {
+        try {
+            return FileUtils.getShaHash(file).equalsIgnoreCase(hash);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     /**
@@ -116,8 +201,13 @@ public class HttpDownloader implements Downloader {
             queue = Collections.unmodifiableList(queue);
         }
 
+        // The pool only bounds the total; each host gets its own limit that adapts as files come in
+        limiter = new AdaptiveHostLimiter(INITIAL_HOST_LIMIT, threadCount);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setPriority(threadPriority).build();
+        segmentExecutor = Executors.newCachedThreadPool(threadFactory);
+        journal = DownloadJournal.load(tempDir);
         ListeningExecutorService executor = MoreExecutors.listeningDecorator(
-                Executors.newFixedThreadPool(threadCount));
+                Executors.newFixedThreadPool(threadCount, threadFactory));
 
         try {
             List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
@@ -134,23 +224,24 @@ public class HttpDownloader implements Downloader {
                 throw new IOException("Something went wrong", e);
             }
 
-            synchronized (this) {
-                if (failed.size() > 0) {
-                    throw new IOException(failed.size() + " file(s) could not be downloaded");
-                }
+            if (failed.get() > 0) {
+                throw new IOException(failed.get() + " file(s) could not be downloaded");
             }
         } finally {
             executor.shutdownNow();
+            segmentExecutor.shutdownNow();
+            journal.flush();
         }
     }
 
     @Override
-    public synchronized double getProgress() {
+    public double getProgress() {
+        long total = this.total.get();
         if (total <= 0) {
             return -1;
         }
 
-        long downloaded = this.downloaded;
+        long downloaded = this.downloaded.get();
         for (HttpDownloadJob job : running) {
             downloaded += Math.max(0, job.getProgress() * job.size);
         }
@@ -158,8 +249,15 @@ public class HttpDownloader implements Downloader {
     }
 
     @Override
-    public synchronized String getStatus() {
-        String failMessage = tr("downloader.failedCount", failed.size());
+    public String getStatus() {
+        int failed = this.failed.get();
+        List<HttpDownloadJob> running = new ArrayList<HttpDownloadJob>(MAX_STATUS_JOBS);
+        for (HttpDownloadJob job : this.running) {
+            if (running.size() >= MAX_STATUS_JOBS) break;
+            running.add(job);
+        }
+
+        String failMessage = tr("downloader.failedCount", failed);
         if (running.size() == 1) {
             return tr("downloader.downloadingItem", running.get(0).getName()) +
                     "\n" + running.get(0).getStatus() +
@@ -170,7 +268,7 @@ public class HttpDownloader implements Downloader {
                 builder.append("\n");
                 builder.append(job.getStatus());
             }
-            return tr("downloader.downloadingList", queue.size(), left, failed.size()) +
+            return tr("downloader.downloadingList", queued.get(), left.get(), failed) +
                     builder.toString() +
                     "\n" + failMessage;
         } else {
@@ -182,39 +280,42 @@ public class HttpDownloader implements Downloader {
         private final File destFile;
         private final List<URL> urls;
         private final long size;
+        private final String hash;
         @Getter private String name;
         private HttpRequest request;
+        private volatile ProgressObservable transfer;
+        private String contentHash;
 
-        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name) {
+        private HttpDownloadJob(File destFile, List<URL> urls, long size, String name, String hash) {
             this.destFile = destFile;
             this.urls = urls;
             this.size = size;
             this.name = name;
+            this.hash = hash;
         }
 
         @Override
         public void run() {
             try {
-                synchronized (HttpDownloader.this) {
-                    running.add(this);
-                }
+                running.add(this);
 
                 download();
 
-                synchronized (HttpDownloader.this) {
-                    downloaded += size;
+                // Leave the running list first so that a concurrent poll doesn't count this job twice
+                running.remove(this);
+                downloaded.addAndGet(size);
+
+                Callback<File> listener = completionListener;
+                if (listener != null) {
+                    listener.handle(destFile);
                 }
             } catch (IOException e) {
-                synchronized (HttpDownloader.this) {
-                    failed.add(this);
-                }
+                failed.incrementAndGet();
             } catch (InterruptedException e) {
                 log.info("Download of " + destFile + " was interrupted");
             } finally {
-                synchronized (HttpDownloader.this) {
-                    left--;
-                    running.remove(this);
-                }
+                left.decrementAndGet();
+                running.remove(this);
             }
         }
 
@@ -228,17 +329,31 @@ public class HttpDownloader implements Downloader {
             // Try to download
             download(tempFile);
 
+            if (isJournaled()) {
+                journal.remove(tempFile);
+            }
+
             destFile.delete();
             if (!tempFile.renameTo(destFile)) {
                 throw new IOException(String.format("Failed to rename %s to %s", tempFile, destFile));
             }
         }
 
+        private boolean isJournaled() {
+            return size >= journalThreshold;
+        }
+
         private void download(File file) throws IOException, InterruptedException {
             int trial = 0;
             boolean first = true;
             IOException lastException = null;
 
+            // Pick up where an earlier run of the launcher left off
+            HttpRequest.PartialDownloadInfo resumeInfo = isJournaled() ? journal.resume(file, urls, size, hash) : null;
+            if (resumeInfo != null) {
+                log.info("Resuming download of " + file + " from byte " + resumeInfo.getCurrentLength());
+            }
+
             do {
                 for (URL url : urls) {
                     // Sleep between each trial
@@ -248,10 +363,26 @@ public class HttpDownloader implements Downloader {
                     first = false;
 
                     try {
-                        tryDownloadFrom(url, file, null, 0);
+                        if (resumeInfo == null && size >= segmentThreshold && segmentCount > 1) {
+                            SegmentedDownload download = new SegmentedDownload(url, file, size, segmentCount,
+                                    segmentThreshold / segmentCount, tryCount, limiter, segmentExecutor);
+                            if (isJournaled()) {
+                                journal.begin(file, url, size, hash);
+                                download.setCheckpointListener(createCheckpointListener(file));
+                            }
+                            transfer = download;
+                            contentHash = download.download();
+                        } else {
+                            tryDownloadFrom(url, file, resumeInfo, 0);
+                            contentHash = request.getContentHash();
+                        }
+                        verify(url, file);
                         return;
                     } catch (IOException e) {
                         lastException = e;
+                    } finally {
+                        // Later attempts start from scratch, or resume from what they themselves wrote
+                        resumeInfo = null;
                     }
                 }
             } while (++trial < tryCount);
@@ -261,10 +392,23 @@ public class HttpDownloader implements Downloader {
 
         private void tryDownloadFrom(URL url, File file, HttpRequest.PartialDownloadInfo retryDetails, int tries)
                 throws InterruptedException, IOException {
+            AdaptiveHostLimiter.Permit permit = limiter.acquire(url);
             try {
                 request = HttpRequest.get(url);
-                request.setResumeInfo(retryDetails).execute().expectResponseCode(200).saveContent(file);
+                transfer = request;
+                request.setRateLimiter(rateLimiter);
+                request.setResumeInfo(retryDetails).execute().expectResponseCode(200);
+                if (isJournaled()) {
+                    // Servers that ignore the range send the whole file again, which starts a new entry
+                    if (request.getResponseCode() != 206) {
+                        journal.begin(file, url, size, hash);
+                    }
+                    request.setCheckpointListener(CHECKPOINT_INTERVAL, createCheckpointListener(file));
+                }
+                request.saveContent(file);
+                permit.success(request.getReadBytes());
             } catch (IOException e) {
+                permit.failure(request.isConnected() ? request.getResponseCode() : -1);
                 log.log(Level.WARNING, "Failed to download " + url, e);
 
                 // We only want to try to resume a partial download if the request succeeded before
@@ -276,14 +420,41 @@ public class HttpDownloader implements Downloader {
                 Optional<HttpRequest.PartialDownloadInfo> byteRangeSupport = request.canRetryPartial();
                 if (byteRangeSupport.isPresent()) {
                     tryDownloadFrom(url, file, byteRangeSupport.get(), tries + 1);
+                } else {
+                    throw e;
+                }
+            } finally {
+                permit.release();
+            }
+        }
+
+        private Callback<Long> createCheckpointListener(final File file) {
+            return new Callback<Long>() {
+                @Override
+                public void handle(Long committed) {
+                    journal.commit(file, committed);
+                }
+            };
+        }
+
+        private void verify(URL url, File file) throws IOException {
+            if (hash == null) return;
+
+            String actualHash = contentHash;
+            if (!hash.equalsIgnoreCase(actualHash)) {
+                if (isJournaled()) {
+                    journal.remove(file);
                 }
+                file.delete();
+                throw new IOException(String.format("Download of %s from %s is corrupt (expected hash %s, got %s)",
+                        name, url, hash, actualHash));
             }
         }
 
         @Override
         public double getProgress() {
-            HttpRequest request = this.request;
-            return request != null ? request.getProgress() : -1;
+            ProgressObservable transfer = this.transfer;
+            return transfer != null ? transfer.getProgress() : -1;
         }
 
         @Override
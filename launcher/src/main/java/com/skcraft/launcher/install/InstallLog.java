@@ -7,35 +7,49 @@
 package com.skcraft.launcher.install;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import lombok.Data;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
 
-import java.io.File;
-import java.net.URI;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Level;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-@Data
+/**
+ * Records the files that an update installed, in groups, so that the next
+ * update can remove the files that are no longer part of the install.
+ * </p>
+ * Every path (whether an entry, a group or both) is stored once in a path
+ * table and referred to by its number, and each entry stores the number
+ * of its group, rather than keeping a set of strings for each group.
+ * </p>
+ * The log is saved in a compact binary form, and also as JSON, which is
+ * only read if the binary form is missing or older.
+ */
+@Log
 public class InstallLog {
 
-    @JsonIgnore
+    private static final int MAGIC = 0x534b494c; // SKIL
+    private static final int FORMAT_VERSION = 1;
+    private static final int NOT_ENTRY = -1;
+
+    @Getter @Setter @JsonIgnore
     private File baseDir;
-    private Map<String, Set<String>> entries = new HashMap<String, Set<String>>();
-    @JsonIgnore
-    private Set<String> cache = new HashSet<String>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] paths = new String[64];
+    private int[] groups = new int[64];
+    private int count;
 
     public synchronized void add(@NonNull String group, @NonNull String entry) {
-        cache.add(entry);
-        Set<String> subEntries = entries.get(group);
-        if (subEntries == null) {
-            subEntries = new HashSet<String>();
-            entries.put(group, subEntries);
-        }
-        subEntries.add(entry);
+        int groupId = getId(group);
+        groups[getId(entry)] = groupId;
     }
 
     public synchronized void add(@NonNull File group, @NonNull File entry) {
@@ -43,7 +57,8 @@ public class InstallLog {
     }
 
     public synchronized boolean has(@NonNull String entry) {
-        return cache.contains(entry);
+        Integer id = ids.get(entry);
+        return id != null && groups[id] != NOT_ENTRY;
     }
 
     public synchronized boolean has(@NonNull File entry) {
@@ -51,11 +66,11 @@ public class InstallLog {
     }
 
     public synchronized boolean copyGroupFrom(InstallLog other, String group) {
-        Set<String> otherSet = other.entries.get(group);
-        if (otherSet == null) {
+        List<String> entries = other.getGroup(group);
+        if (entries == null) {
             return false;
         }
-        for (String entry : otherSet) {
+        for (String entry : entries) {
             add(group, entry);
         }
         return true;
@@ -65,23 +80,242 @@ public class InstallLog {
         return copyGroupFrom(other, relativize(entry));
     }
 
-    @JsonIgnore
-    public synchronized Set<Map.Entry<String, Set<String>>> getEntrySet() {
-        return entries.entrySet();
+    public synchronized boolean hasGroup(String group) {
+        Integer id = ids.get(group);
+        if (id == null) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (groups[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the entries in this log that are not in another log, such as
+     * the files from the last update that the current update didn't
+     * install.
+     *
+     * @param other the other log
+     * @return the entries
+     */
+    public synchronized List<String> getRemoved(@NonNull InstallLog other) {
+        List<String> removed = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if (groups[i] != NOT_ENTRY && !other.has(paths[i])) {
+                removed.add(paths[i]);
+            }
+        }
+        return removed;
     }
 
-    public synchronized boolean hasGroup(String group) {
-        return entries.containsKey(group);
+    /**
+     * Get the entries of each group, as they are written to JSON.
+     *
+     * @return a map of groups to their entries
+     */
+    public synchronized Map<String, Set<String>> getEntries() {
+        Map<String, Set<String>> entries = new TreeMap<String, Set<String>>();
+        for (int i = 0; i < count; i++) {
+            if (groups[i] != NOT_ENTRY) {
+                String group = paths[groups[i]];
+                Set<String> groupEntries = entries.get(group);
+                if (groupEntries == null) {
+                    groupEntries = new TreeSet<String>();
+                    entries.put(group, groupEntries);
+                }
+                groupEntries.add(paths[i]);
+            }
+        }
+        return entries;
+    }
+
+    public synchronized void setEntries(Map<String, Set<String>> entries) {
+        ids.clear();
+        count = 0;
+        for (Map.Entry<String, Set<String>> group : entries.entrySet()) {
+            for (String entry : group.getValue()) {
+                add(group.getKey(), entry);
+            }
+        }
+    }
+
+    /**
+     * Write the log in its binary form, replacing the file atomically.
+     *
+     * @param file the file
+     * @throws IOException on I/O error
+     */
+    public synchronized void write(@NonNull File file) throws IOException {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return paths[o1].compareTo(paths[o2]);
+            }
+        });
+
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[order[i]] = i;
+        }
+
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(count);
+
+            // Paths are sorted, so only write the part that differs from the one before
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                String path = paths[order[i]];
+                int common = commonPrefix(previous, path);
+                out.writeShort(common);
+                out.writeUTF(path.substring(common));
+                int group = groups[order[i]];
+                out.writeInt(group != NOT_ENTRY ? positions[group] : NOT_ENTRY);
+                previous = path;
+            }
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read a log, from the binary form if it is there and at least as new
+     * as the JSON form, and otherwise from the JSON form.
+     *
+     * @param binaryFile the binary file
+     * @param jsonFile the JSON file
+     * @return the log, which is empty if neither could be read
+     */
+    public static InstallLog read(@NonNull File binaryFile, @NonNull File jsonFile) {
+        if (binaryFile.exists() && binaryFile.lastModified() >= jsonFile.lastModified()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile)));
+                try {
+                    return read(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to read " + binaryFile.getAbsolutePath() + ", so reading the JSON instead", e);
+            }
+        }
+
+        return Persistence.read(jsonFile, InstallLog.class);
+    }
+
+    private static InstallLog read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not an install log");
+        }
+
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad path count " + count);
+        }
+
+        InstallLog installLog = new InstallLog();
+        installLog.paths = new String[Math.max(count, 1)];
+        installLog.groups = new int[Math.max(count, 1)];
+
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int common = in.readUnsignedShort();
+            if (common > previous.length()) {
+                throw new IOException("Bad path at " + i);
+            }
+            String path = previous.substring(0, common) + in.readUTF();
+            int group = in.readInt();
+            if (group < NOT_ENTRY || group >= count) {
+                throw new IOException("Bad group at " + i);
+            }
+
+            installLog.paths[i] = path;
+            installLog.groups[i] = group;
+            installLog.ids.put(path, i);
+            previous = path;
+        }
+        installLog.count = count;
+
+        return installLog;
+    }
+
+    private synchronized List<String> getGroup(String group) {
+        Integer id = ids.get(group);
+        if (id == null) {
+            return null;
+        }
+
+        List<String> entries = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            if (groups[i] == id) {
+                entries.add(paths[i]);
+            }
+        }
+        return !entries.isEmpty() ? entries : null;
+    }
+
+    private int getId(String path) {
+        Integer id = ids.get(path);
+        if (id != null) {
+            return id;
+        }
+
+        if (count == paths.length) {
+            paths = Arrays.copyOf(paths, count * 2);
+            groups = Arrays.copyOf(groups, count * 2);
+        }
+
+        paths[count] = path;
+        groups[count] = NOT_ENTRY;
+        ids.put(path, count);
+        return count++;
     }
 
     private String relativize(File child) {
-        checkNotNull(baseDir);
-        URI uri = child.toURI();
-        String relative = baseDir.toURI().relativize(uri).getPath();
-        if (relative.equals(uri.toString())) {
+        return relativize(checkNotNull(baseDir), child);
+    }
+
+    /**
+     * Get the path of a file relative to a directory, with forward slashes.
+     *
+     * @param baseDir the directory
+     * @param child the file, which must be in the directory
+     * @return the relative path
+     */
+    static String relativize(File baseDir, File child) {
+        Path base = baseDir.getAbsoluteFile().toPath().normalize();
+        Path path = child.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(base) || path.equals(base)) {
             throw new IllegalArgumentException("Child path not in base");
         }
-        return relative;
+
+        String relative = base.relativize(path).toString();
+        return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
     }
 
 }
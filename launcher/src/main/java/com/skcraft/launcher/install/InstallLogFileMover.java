@@ -7,11 +7,17 @@
 package com.skcraft.launcher.install;
 
 import com.skcraft.launcher.Launcher;
+import com.skcraft.launcher.ObjectsRoot;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Level;
 
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -22,20 +28,68 @@ public class InstallLogFileMover implements InstallTask {
     private final InstallLog installLog;
     private final File from;
     private final File to;
+    private final ObjectsRoot objects;
+    private final String hash;
+
+    /**
+     * The index to record the installed file in, or null. Only used if
+     * the hash is known.
+     */
+    @Getter @Setter
+    private FileStateIndex fileStates;
 
     public InstallLogFileMover(InstallLog installLog, @NonNull File from, @NonNull File to) {
+        this(installLog, from, to, null, null);
+    }
+
+    /**
+     * Create a new mover that installs the file through the shared object
+     * store, so that other instances can reuse it.
+     *
+     * @param installLog the install log
+     * @param from the downloaded file, or the stored object itself
+     * @param to the target file
+     * @param objects the object store, or null to move the file directly
+     * @param hash the SHA-1 hash of the file, or null to move the file directly
+     */
+    public InstallLogFileMover(InstallLog installLog, @NonNull File from, @NonNull File to,
+                               ObjectsRoot objects, String hash) {
         this.installLog = installLog;
         this.from = from;
         this.to = to;
+        this.objects = objects;
+        this.hash = hash;
     }
 
     @Override
     public void execute(Launcher launcher) throws IOException {
         InstallLogFileMover.log.log(Level.INFO, "Installing to {0} (from {1})...", new Object[]{to.getAbsoluteFile(), from.getName()});
-        to.getParentFile().mkdirs();
-        to.delete();
-        from.renameTo(to);
+        if (objects != null && hash != null) {
+            objects.add(from, hash);
+            objects.materialize(hash, to);
+        } else {
+            to.getParentFile().mkdirs();
+            to.delete();
+            from.renameTo(to);
+        }
         installLog.add(to, to);
+        if (fileStates != null && hash != null) {
+            fileStates.record(to, hash);
+        }
+    }
+
+    @Override
+    public Collection<File> getInputs() {
+        return Collections.singletonList(from);
+    }
+
+    @Override
+    public Collection<File> getOutputs() {
+        if (objects != null && hash != null) {
+            return Arrays.asList(objects.getObjectPath(hash), to);
+        } else {
+            return Collections.singletonList(to);
+        }
     }
 
     @Override
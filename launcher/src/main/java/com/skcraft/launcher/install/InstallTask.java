@@ -9,8 +9,38 @@ package com.skcraft.launcher.install;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.Launcher;
 
+import java.io.File;
+import java.util.Collection;
+
 public interface InstallTask extends ProgressObservable {
 
     void execute(Launcher launcher) throws Exception;
 
+    /**
+     * Get the files that have to exist before this task can run, such as
+     * the downloaded file that it moves into place.
+     * </p>
+     * Returning null means the inputs are unknown, in which case the task
+     * will only be run once all downloads and every task queued before it
+     * have finished, and tasks queued after it will wait for it.
+     *
+     * @return the input files, or null if unknown
+     */
+    default Collection<File> getInputs() {
+        return null;
+    }
+
+    /**
+     * Get the files that this task creates or replaces. Tasks that write a
+     * file are run after earlier tasks that read or write the same file.
+     * </p>
+     * Returning null means the outputs are unknown, which is treated the
+     * same way as unknown inputs.
+     *
+     * @return the output files, or null if unknown
+     */
+    default Collection<File> getOutputs() {
+        return null;
+    }
+
 }
@@ -6,18 +6,23 @@
 
 package com.skcraft.launcher.install;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -25,13 +30,17 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class Installer implements ProgressObservable {
 
+    private static final double DOWNLOAD_PORTION = 0.98;
+
     @Getter private final File tempDir;
     private final HttpDownloader downloader;
+    @Getter @Setter private int threadCount = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
 
     private TaskQueue mainQueue = new TaskQueue();
     private TaskQueue lateQueue = new TaskQueue();
 
-    private transient TaskQueue activeQueue;
+    private transient volatile TaskQueue activeQueue;
+    private transient volatile boolean downloading;
 
     public Installer(@NonNull File tempDir) {
         this.tempDir = tempDir;
@@ -52,13 +61,52 @@ public class Installer implements ProgressObservable {
 
     public synchronized void execute(Launcher launcher) throws Exception {
         activeQueue = mainQueue;
-        mainQueue.execute(launcher);
+        mainQueue.execute(launcher, threadCount);
         activeQueue = null;
     }
 
+    /**
+     * Download queued files while running the main queue, starting each task
+     * as soon as the downloads that it needs have landed instead of waiting
+     * for every download to finish first.
+     *
+     * @param launcher the launcher
+     * @throws Exception thrown on download or install error
+     */
+    public synchronized void downloadAndExecute(Launcher launcher) throws Exception {
+        downloader.setCompletionListener(new Callback<File>() {
+            @Override
+            public void handle(File value) {
+                mainQueue.fileLanded(value);
+            }
+        });
+
+        activeQueue = mainQueue;
+        downloading = true;
+        ListenableFuture<?> downloads = launcher.getExecutor().submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    downloader.execute();
+                } finally {
+                    downloading = false;
+                }
+                return null;
+            }
+        });
+
+        try {
+            mainQueue.execute(launcher, threadCount, downloads);
+        } finally {
+            activeQueue = null;
+            downloads.cancel(true);
+            downloader.setCompletionListener(null);
+        }
+    }
+
     public synchronized void executeLate(Launcher launcher) throws Exception {
         activeQueue = lateQueue;
-        lateQueue.execute(launcher);
+        lateQueue.execute(launcher, threadCount);
         activeQueue = null;
     }
 
@@ -68,50 +116,280 @@ public class Installer implements ProgressObservable {
 
     @Override
     public double getProgress() {
+        if (downloading) {
+            return Math.max(0, downloader.getProgress()) * DOWNLOAD_PORTION;
+        }
+
+        TaskQueue activeQueue = this.activeQueue;
         if (activeQueue == null) return 0.0;
 
-        return activeQueue.finished / (double) activeQueue.count;
+        double progress = activeQueue.finished.get() / (double) activeQueue.count;
+        if (activeQueue.pipelined) {
+            return DOWNLOAD_PORTION + progress * (1 - DOWNLOAD_PORTION);
+        } else {
+            return progress;
+        }
     }
 
     @Override
     public String getStatus() {
-        if (activeQueue != null && activeQueue.running != null) {
+        TaskQueue activeQueue = this.activeQueue;
+        if (downloading) {
+            return downloader.getStatus();
+        } else if (activeQueue != null && activeQueue.running != null) {
             InstallTask running = activeQueue.running;
             String status = running.getStatus();
             if (status == null) {
                 status = running.toString();
             }
-            return tr("installer.executing", activeQueue.count - activeQueue.finished) + "\n" + status;
+            return tr("installer.executing", activeQueue.count - activeQueue.finished.get()) + "\n" + status;
         } else {
             return SharedLocale.tr("installer.installing");
         }
     }
 
     public static class TaskQueue {
+        private static final Object DOWNLOADS_DONE = new Object();
+
         private List<InstallTask> queue = new ArrayList<InstallTask>();
+        private final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
 
-        private int count = 0;
-        private int finished = 0;
-        private InstallTask running;
+        private volatile int count = 0;
+        private final AtomicInteger finished = new AtomicInteger();
+        private volatile InstallTask running;
+        private volatile boolean pipelined;
 
         public synchronized void queue(@NonNull InstallTask runnable) {
             queue.add(runnable);
             count++;
         }
 
-        public synchronized void execute(Launcher launcher) throws Exception {
+        /**
+         * Notify the queue that a downloaded file is now on disk.
+         *
+         * @param file the file
+         */
+        void fileLanded(File file) {
+            events.add(file);
+        }
+
+        public synchronized void execute(Launcher launcher, int threadCount) throws Exception {
+            execute(launcher, threadCount, null);
+        }
+
+        /**
+         * Execute the queue on a pool of worker threads. Tasks are ordered
+         * by the files they read and write: a task runs once the tasks
+         * that produce its inputs have finished and, if downloads are still
+         * in progress, once the downloads for its remaining inputs have
+         * landed. Tasks with unknown inputs or outputs run on their own,
+         * after all downloads and every task queued before them.
+         *
+         * @param launcher the launcher
+         * @param threadCount the number of worker threads
+         * @param downloads the future for the download phase, or null if downloads are finished
+         * @throws Exception thrown on download or install error
+         */
+        public synchronized void execute(final Launcher launcher, int threadCount, ListenableFuture<?> downloads)
+                throws Exception {
             queue = Collections.unmodifiableList(queue);
+            pipelined = downloads != null;
 
+            List<Node> nodes = plan(downloads != null);
+            Map<File, List<Node>> waiting = new HashMap<File, List<Node>>();
+            for (Node node : nodes) {
+                for (File file : node.missing) {
+                    List<Node> dependents = waiting.get(file);
+                    if (dependents == null) {
+                        dependents = new ArrayList<Node>();
+                        waiting.put(file, dependents);
+                    }
+                    dependents.add(node);
+                }
+            }
+
+            boolean downloadsDone = downloads == null;
+            if (downloads != null) {
+                downloads.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        events.add(DOWNLOADS_DONE);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
             try {
-                for (InstallTask runnable : queue) {
-                    checkInterrupted();
-                    running = runnable;
-                    runnable.execute(launcher);
-                    finished++;
+                int remaining = nodes.size();
+                for (Node node : nodes) {
+                    submitIfReady(launcher, executor, node, downloadsDone);
+                }
+
+                while (remaining > 0) {
+                    Object event = events.take();
+
+                    if (event instanceof Node) {
+                        Node node = (Node) event;
+                        if (node.error != null) {
+                            Throwables.propagateIfPossible(node.error, Exception.class);
+                            throw new RuntimeException(node.error);
+                        }
+                        remaining--;
+                        for (Node dependent : node.dependents) {
+                            dependent.pending--;
+                            submitIfReady(launcher, executor, dependent, downloadsDone);
+                        }
+                    } else if (event instanceof File) {
+                        List<Node> dependents = waiting.remove(event);
+                        if (dependents != null) {
+                            for (Node dependent : dependents) {
+                                dependent.missing.remove(event);
+                                submitIfReady(launcher, executor, dependent, downloadsDone);
+                            }
+                        }
+                    } else if (event == DOWNLOADS_DONE) {
+                        awaitDownloads(downloads);
+                        downloadsDone = true;
+
+                        // Anything still missing isn't coming from the downloader
+                        waiting.clear();
+                        for (Node node : nodes) {
+                            node.missing.clear();
+                            submitIfReady(launcher, executor, node, downloadsDone);
+                        }
+                    }
+                }
+
+                if (!downloadsDone) {
+                    // Some downloads aren't needed by this queue, but they still have to succeed
+                    awaitDownloads(downloads);
                 }
             } finally {
+                executor.shutdownNow();
                 running = null;
             }
         }
+
+        private List<Node> plan(boolean pipelined) {
+            List<Node> nodes = new ArrayList<Node>();
+            Map<File, Node> writers = new HashMap<File, Node>();
+            Map<File, List<Node>> readers = new HashMap<File, List<Node>>();
+            List<Node> sinceBarrier = new ArrayList<Node>();
+            Node barrier = null;
+
+            for (InstallTask task : queue) {
+                Node node = new Node(task);
+                Collection<File> inputs = task.getInputs();
+                Collection<File> outputs = task.getOutputs();
+
+                if (barrier != null) {
+                    barrier.precede(node);
+                }
+
+                if (inputs == null || outputs == null) {
+                    node.barrier = true;
+                    for (Node previous : sinceBarrier) {
+                        previous.precede(node);
+                    }
+                    sinceBarrier.clear();
+                    writers.clear();
+                    readers.clear();
+                    barrier = node;
+                } else {
+                    for (File input : inputs) {
+                        Node writer = writers.get(input);
+                        if (writer != null) {
+                            writer.precede(node);
+                        } else if (pipelined && !input.exists()) {
+                            node.missing.add(input);
+                        }
+
+                        List<Node> fileReaders = readers.get(input);
+                        if (fileReaders == null) {
+                            fileReaders = new ArrayList<Node>();
+                            readers.put(input, fileReaders);
+                        }
+                        fileReaders.add(node);
+                    }
+
+                    for (File output : outputs) {
+                        Node writer = writers.put(output, node);
+                        if (writer != null) {
+                            writer.precede(node);
+                        }
+
+                        List<Node> fileReaders = readers.remove(output);
+                        if (fileReaders != null) {
+                            for (Node reader : fileReaders) {
+                                if (reader != node) {
+                                    reader.precede(node);
+                                }
+                            }
+                        }
+                    }
+
+                    sinceBarrier.add(node);
+                }
+
+                nodes.add(node);
+            }
+
+            return nodes;
+        }
+
+        private void submitIfReady(final Launcher launcher, ExecutorService executor, final Node node,
+                                   boolean downloadsDone) {
+            if (node.submitted || node.pending > 0 || !node.missing.isEmpty() || (node.barrier && !downloadsDone)) {
+                return;
+            }
+
+            node.submitted = true;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkInterrupted();
+                        running = node.task;
+                        node.task.execute(launcher);
+                        finished.incrementAndGet();
+                    } catch (Throwable t) {
+                        node.error = t;
+                    } finally {
+                        events.add(node);
+                    }
+                }
+            });
+        }
+
+        private static void awaitDownloads(Future<?> downloads) throws Exception {
+            try {
+                downloads.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static class Node {
+        private final InstallTask task;
+        private final List<Node> dependents = new ArrayList<Node>();
+        private final Set<File> missing = new HashSet<File>();
+        private int pending;
+        private boolean barrier;
+        private boolean submitted;
+        private volatile Throwable error;
+
+        private Node(InstallTask task) {
+            this.task = task;
+        }
+
+        private void precede(Node other) {
+            dependents.add(other);
+            other.pending++;
+        }
     }
 }
@@ -0,0 +1,333 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.skcraft.concurrency.Callback;
+import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.util.HttpRequest;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Downloads one file as several byte ranges fetched in parallel.
+ * </p>
+ * The first range is requested straight away. If the server answers with
+ * a partial response, the total size is taken from its
+ * <code>Content-Range</code> header, the file is preallocated, and the
+ * remaining ranges are fetched on the given executor and written directly
+ * to their offsets in the file. If the server ignores the range and sends
+ * the whole file, it is saved like a regular download.
+ * </p>
+ * The first range is hashed as it streams in. Each later range is hashed,
+ * in order, once it completes, while the other ranges are still
+ * downloading.
+ */
+@Log
+class SegmentedDownload implements ProgressObservable {
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private final URL url;
+    private final File file;
+    private final long expectedSize;
+    private final int segmentCount;
+    private final long minSegmentSize;
+    private final int tryCount;
+    private final AdaptiveHostLimiter limiter;
+    private final ExecutorService executor;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private volatile HttpRequest firstRequest;
+    private volatile long total = -1;
+    private long checkpointInterval;
+    private Callback<Long> checkpointListener;
+
+    SegmentedDownload(@NonNull URL url, @NonNull File file, long expectedSize, int segmentCount,
+                      long minSegmentSize, int tryCount, @NonNull AdaptiveHostLimiter limiter,
+                      @NonNull ExecutorService executor) {
+        this.url = url;
+        this.file = file;
+        this.expectedSize = expectedSize;
+        this.segmentCount = Math.max(2, segmentCount);
+        this.minSegmentSize = minSegmentSize;
+        this.tryCount = tryCount;
+        this.limiter = limiter;
+        this.executor = executor;
+    }
+
+    /**
+     * Have the download sync the file to disk every so often and report
+     * how many bytes from the start of the file are safely stored. For
+     * ranged downloads, this only advances as each range in order has
+     * completed.
+     *
+     * @param interval the number of bytes between each sync, when the file is not split into ranges
+     * @param listener called with the length that is on disk after each sync
+     */
+    public void setCheckpointListener(long interval, Callback<Long> listener) {
+        this.checkpointInterval = interval;
+        this.checkpointListener = listener;
+    }
+
+    /**
+     * Download the file.
+     *
+     * @return the SHA-1 hash of the downloaded file
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public String download() throws IOException, InterruptedException {
+        long firstSize = Math.max(minSegmentSize, expectedSize / segmentCount);
+
+        HttpRequest request = HttpRequest.get(url).header("Range", "bytes=0-" + (firstSize - 1));
+        firstRequest = request;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        RandomAccessFile raf = null;
+        AdaptiveHostLimiter.Permit permit = limiter.acquire(url);
+
+        try {
+            request.execute();
+
+            if (request.getResponseCode() == 200) {
+                // The server doesn't do ranges, so we get the whole thing in one go
+                if (checkpointListener != null) {
+                    request.setCheckpointListener(checkpointInterval, checkpointListener);
+                }
+                request.saveContent(file);
+                permit.success(request.getReadBytes());
+                return request.getContentHash();
+            }
+
+            request.expectResponseCode(206);
+            long total = parseTotal(request.getResponseHeader("Content-Range"));
+            if (total < 0) {
+                throw new IOException("Server sent a partial response for " + url + " without a total size");
+            }
+            this.total = total;
+
+            long firstLength = Math.min(total, firstSize);
+            long segmentSize = Math.max(minSegmentSize, (total - firstLength + segmentCount - 2) / (segmentCount - 1));
+
+            file.getParentFile().mkdirs();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(total);
+            FileChannel channel = raf.getChannel();
+
+            for (long start = firstLength; start < total; start += segmentSize) {
+                Segment segment = new Segment(channel, start, Math.min(total, start + segmentSize) - 1);
+                segments.add(segment);
+                futures.add(executor.submit(segment));
+            }
+
+            Hasher hasher = Hashing.sha1().newHasher();
+            request.saveContent(new ChannelOutputStream(channel, 0), hasher);
+            if (request.getReadBytes() != firstLength) {
+                throw new IOException(String.format("Expected %d bytes for the first range of %s, got %d",
+                        firstLength, url, request.getReadBytes()));
+            }
+            permit.success(request.getReadBytes());
+            checkpoint(channel, firstLength);
+
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            for (int i = 0; i < segments.size(); i++) {
+                await(futures.get(i));
+                Segment segment = segments.get(i);
+                hashRange(channel, segment.start, segment.end + 1, buffer, hasher);
+                checkpoint(channel, segment.end + 1);
+            }
+
+            return hasher.hash().toString();
+        } catch (IOException e) {
+            permit.failure(request.isConnected() ? request.getResponseCode() : -1);
+            throw e;
+        } finally {
+            permit.release();
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            closeQuietly(raf);
+        }
+    }
+
+    @Override
+    public double getProgress() {
+        long total = this.total;
+        HttpRequest firstRequest = this.firstRequest;
+        if (total <= 0) {
+            return firstRequest != null ? firstRequest.getProgress() : -1;
+        }
+
+        long read = firstRequest.getReadBytes();
+        for (Segment segment : segments) {
+            read += segment.getReadBytes();
+        }
+        return read / (double) total;
+    }
+
+    @Override
+    public String getStatus() {
+        return null;
+    }
+
+    private void checkpoint(FileChannel channel, long length) throws IOException {
+        if (checkpointListener != null) {
+            channel.force(false);
+            checkpointListener.handle(length);
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IOException("Failed to download range", cause);
+        }
+    }
+
+    private static void hashRange(FileChannel channel, long start, long end, ByteBuffer buffer, Hasher hasher)
+            throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int len = channel.read(buffer, position);
+            if (len < 0) {
+                throw new IOException("Unexpected end of file while hashing");
+            }
+            hasher.putBytes(buffer.array(), 0, len);
+            position += len;
+        }
+    }
+
+    static long parseTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private class Segment implements Callable<Object> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private volatile HttpRequest request;
+        private volatile boolean done;
+
+        private Segment(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        private long getReadBytes() {
+            if (done) {
+                return end - start + 1;
+            }
+            HttpRequest request = this.request;
+            return request != null ? request.getReadBytes() : 0;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            IOException lastException = null;
+
+            for (int trial = 0; trial < tryCount; trial++) {
+                AdaptiveHostLimiter.Permit permit = limiter.acquire(url);
+                HttpRequest request = HttpRequest.get(url).header("Range", "bytes=" + start + "-" + end);
+                this.request = request;
+
+                try {
+                    request.execute().expectResponseCode(206);
+                    if (!String.valueOf(request.getResponseHeader("Content-Range")).startsWith("bytes " + start + "-")) {
+                        throw new IOException("Server returned the wrong range for " + url);
+                    }
+                    request.saveContent(new ChannelOutputStream(channel, start), null);
+                    if (request.getReadBytes() != end - start + 1) {
+                        throw new IOException(String.format("Expected %d bytes for range %d-%d of %s, got %d",
+                                end - start + 1, start, end, url, request.getReadBytes()));
+                    }
+                    permit.success(request.getReadBytes());
+                    done = true;
+                    return null;
+                } catch (IOException e) {
+                    permit.failure(request.isConnected() ? request.getResponseCode() : -1);
+                    log.log(Level.WARNING, "Failed to download range " + start + "-" + end + " of " + url, e);
+                    lastException = e;
+                } finally {
+                    permit.release();
+                }
+            }
+
+            throw lastException;
+        }
+    }
+
+    /**
+     * Writes to a fixed position in a channel, so that several ranges can be
+     * written to the same file at once.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private ChannelOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.skcraft.launcher.NativesRoot;
+import com.skcraft.launcher.launch.runtime.JavaRuntime;
+import com.skcraft.launcher.model.minecraft.JavaVersion;
+import lombok.Data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The resolved command line for an instance, saved after a launch so that
+ * the next launch can skip reading the version manifest and assets index
+ * and working out the libraries and arguments again.
+ * </p>
+ * Arguments that depend on the session (such as the access token) are
+ * stored with their <code>${...}</code> placeholders intact and are only
+ * filled in at launch, and the proxy arguments are left out and added at
+ * launch, so that no credentials are written to disk. The natives
+ * directory is also left as a placeholder, because each launch may be
+ * given a different one. The plan is only used while its key, which
+ * covers everything else that went into it, still matches.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LaunchPlan {
+
+    private String key;
+    private JavaVersion javaVersion;
+    private JavaRuntime runtime;
+    private int minMemory;
+    private int maxMemory;
+    private String mainClass;
+    private List<String> classPath = new ArrayList<String>();
+    private List<String> flags = new ArrayList<String>();
+    private List<String> args = new ArrayList<String>();
+    private List<NativesRoot.NativeLibrary> natives = new ArrayList<NativesRoot.NativeLibrary>();
+    private String assetsDir;
+    private String assetsFingerprint;
+
+    /**
+     * Check whether the files that the plan refers to are still there.
+     *
+     * @return true if the plan can be used
+     */
+    public boolean isIntact() {
+        if (mainClass == null || assetsDir == null) {
+            return false;
+        }
+
+        for (String path : classPath) {
+            if (!new File(path).exists()) {
+                return false;
+            }
+        }
+
+        for (NativesRoot.NativeLibrary library : natives) {
+            if (library.getFile() == null || !library.getFile().exists()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
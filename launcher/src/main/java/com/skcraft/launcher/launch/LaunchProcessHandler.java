@@ -7,15 +7,21 @@
 package com.skcraft.launcher.launch;
 
 import com.google.common.base.Function;
+import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.dialog.LauncherFrame;
 import com.skcraft.launcher.dialog.ProcessConsoleFrame;
+import com.skcraft.launcher.launch.log.GameLogWriter;
+import com.skcraft.launcher.launch.log.GameLogs;
 import com.skcraft.launcher.swing.MessageLog;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
 import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 /**
@@ -24,19 +30,35 @@ import java.util.logging.Level;
 @Log
 public class LaunchProcessHandler implements Function<Process, ProcessConsoleFrame> {
 
-    private static final int CONSOLE_NUM_LINES = 10000;
+    private static final int CONSOLE_NUM_LINES = 100000;
+    private static final long OUTPUT_DRAIN_TIMEOUT = 5000;
 
     private final Launcher launcher;
+    private final Instance instance;
+    private final LaunchTrace trace;
+    private final AtomicBoolean outputSeen = new AtomicBoolean();
     private ProcessConsoleFrame consoleFrame;
+    private Thread outReader;
+    private Thread errReader;
 
-    public LaunchProcessHandler(@NonNull Launcher launcher) {
+    public LaunchProcessHandler(@NonNull Launcher launcher, @NonNull Instance instance, @NonNull LaunchTrace trace) {
         this.launcher = launcher;
+        this.instance = instance;
+        this.trace = trace;
     }
 
     @Override
     public ProcessConsoleFrame apply(final Process process) {
         log.info("Watching process " + process);
 
+        GameLogWriter capture = null;
+        try {
+            capture = new GameLogWriter(new GameLogs(new File(instance.getDir(), "game_logs")), launcher.getExecutor());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to start capturing the game output", e);
+        }
+        final GameLogWriter gameLog = capture;
+
         try {
             SwingUtilities.invokeAndWait(new Runnable() {
                 @Override
@@ -45,17 +67,28 @@ public class LaunchProcessHandler implements Function<Process, ProcessConsoleFra
                     consoleFrame.setProcess(process);
                     consoleFrame.setVisible(true);
                     MessageLog messageLog = consoleFrame.getMessageLog();
-                    messageLog.consume(process.getInputStream());
-                    messageLog.consume(process.getErrorStream());
+                    outReader = messageLog.consume(process.getInputStream(), null,
+                            text -> handleOutput(gameLog, text, false));
+                    errReader = messageLog.consume(process.getErrorStream(), null,
+                            text -> handleOutput(gameLog, text, true));
                 }
             });
 
             // Wait for the process to end
             process.waitFor();
+
+            // Let the readers get to the end of the output before the log is closed
+            outReader.join(OUTPUT_DRAIN_TIMEOUT);
+            errReader.join(OUTPUT_DRAIN_TIMEOUT);
         } catch (InterruptedException e) {
             // Orphan process
         } catch (InvocationTargetException e) {
             log.log(Level.WARNING, "Unexpected failure", e);
+        } finally {
+            if (gameLog != null) {
+                gameLog.close();
+            }
+            trace.finish("exited without output");
         }
 
         log.info("Process ended, re-showing launcher...");
@@ -74,4 +107,15 @@ public class LaunchProcessHandler implements Function<Process, ProcessConsoleFra
         return consoleFrame;
     }
 
+    private void handleOutput(GameLogWriter gameLog, String text, boolean error) {
+        if (outputSeen.compareAndSet(false, true)) {
+            trace.mark("First game output");
+            trace.finish("started");
+        }
+
+        if (gameLog != null) {
+            gameLog.write(text, error);
+        }
+    }
+
 }
@@ -26,18 +26,14 @@ import com.skcraft.launcher.util.SharedLocale;
 import com.skcraft.launcher.util.SwingExecutor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.java.Log;
-import org.apache.commons.io.FileUtils;
 
 import javax.annotation.Nullable;
 import javax.swing.*;
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.function.BiPredicate;
-import java.util.logging.Level;
 
 import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -55,6 +51,7 @@ public class LaunchSupervisor {
         final Window window = options.getWindow();
         final Instance instance = options.getInstance();
         final LaunchListener listener = options.getListener();
+        final LaunchTrace trace = new LaunchTrace(launcher.getTracesDir(), instance.getTitle());
 
         try {
             boolean update = options.getUpdatePolicy().isUpdateEnabled() && instance.isUpdatePending();
@@ -69,8 +66,11 @@ public class LaunchSupervisor {
             if (options.getSession() != null) {
                 session = options.getSession();
             } else {
-                session = AccountSelectDialog.showAccountRequest(window, launcher);
+                try (LaunchTrace.Span span = trace.begin("Select account")) {
+                    session = AccountSelectDialog.showAccountRequest(window, launcher);
+                }
                 if (session == null) {
+                    trace.finish("cancelled");
                     return;
                 }
             }
@@ -81,11 +81,19 @@ public class LaunchSupervisor {
             }
 
             if (update) {
+                // The update downloads at full speed, so don't compete with it
+                launcher.getUpdatePrefetcher().cancel();
+                // The update may need shared files that no installed instance uses yet
+                launcher.getSharedFilesCollector().cancel();
+
                 // Execute the updater
                 Updater updater = new Updater(launcher, instance);
                 updater.setOnline(options.getUpdatePolicy() == UpdatePolicy.ALWAYS_UPDATE || session.isOnline());
+                updater.setTrace(trace);
+                LaunchTrace.Span updateSpan = trace.begin("Update");
                 ObservableFuture<Instance> future = new ObservableFuture<Instance>(
                         launcher.getExecutor().submit(updater), updater);
+                future.addListener(updateSpan::close, sameThreadExecutor());
 
                 // Show progress
                 ProgressDialog.showProgress(window, future, SharedLocale.tr("launcher.updatingTitle"), tr("launcher.updatingStatus", instance.getTitle()));
@@ -108,28 +116,31 @@ public class LaunchSupervisor {
                 Futures.addCallback(future, new FutureCallback<Instance>() {
                     @Override
                     public void onSuccess(Instance result) {
-                        launch(window, instance, session, listener);
+                        launch(window, instance, session, listener, trace);
                     }
 
                     @Override
                     public void onFailure(Throwable t) {
+                        trace.finish("update failed");
                     }
                 }, SwingExecutor.INSTANCE);
             } else {
-                launch(window, instance, session, listener);
+                launch(window, instance, session, listener, trace);
             }
         } catch (ArrayIndexOutOfBoundsException e) {
             SwingHelper.showErrorDialog(window, SharedLocale.tr("launcher.noInstanceError"), SharedLocale.tr("launcher.noInstanceTitle"));
         }
     }
 
-    private void launch(Window window, Instance instance, Session session, final LaunchListener listener) {
-        final File extractDir = launcher.createExtractDir();
-
+    private void launch(Window window, Instance instance, Session session, final LaunchListener listener,
+                        final LaunchTrace trace) {
         // Get the process
-        Runner task = new Runner(launcher, instance, session, extractDir, new RuntimeVerifier(instance));
+        final Runner task = new Runner(launcher, instance, session, new RuntimeVerifier(instance));
+        task.setTrace(trace);
+        LaunchTrace.Span prepareSpan = trace.begin("Prepare launch");
         ObservableFuture<Process> processFuture = new ObservableFuture<Process>(
                 launcher.getExecutor().submit(task), task);
+        processFuture.addListener(prepareSpan::close, sameThreadExecutor());
 
         // Show process for the process retrieval
         ProgressDialog.showProgress(
@@ -144,22 +155,19 @@ public class LaunchSupervisor {
 
             @Override
             public void onFailure(Throwable t) {
+                trace.finish("launch failed");
             }
         });
 
         // Watch the created process
         ListenableFuture<ProcessConsoleFrame> future = Futures.transform(
-                processFuture, new LaunchProcessHandler(launcher), launcher.getExecutor());
+                processFuture, new LaunchProcessHandler(launcher, instance, trace), launcher.getExecutor());
         SwingHelper.addErrorDialogCallback(null, future);
 
         // Clean up at the very end
         future.addListener(() -> {
-            try {
-                log.info("Process ended; cleaning up " + extractDir.getAbsolutePath());
-                FileUtils.deleteDirectory(extractDir);
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Failed to clean up " + extractDir.getAbsolutePath(), e);
-            }
+            log.info("Process ended; releasing natives");
+            task.releaseNatives();
         }, sameThreadExecutor());
 
         // Hook up launch listener
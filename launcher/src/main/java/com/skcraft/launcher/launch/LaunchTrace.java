@@ -0,0 +1,223 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Records how long each step of a launch takes, from clicking launch to
+ * the first line of output from the game.
+ * </p>
+ * When the launch is finished, the steps are written out in the Chrome
+ * trace event format (which can be opened in <code>chrome://tracing</code>
+ * or Perfetto) and a summary is written to the log.
+ */
+@Log
+public class LaunchTrace {
+
+    private static final int MAX_TRACE_FILES = 20;
+    private static final LaunchTrace DISABLED = new LaunchTrace(null, null);
+
+    private final File dir;
+    private final String name;
+    private final long origin = System.nanoTime();
+    private final Date started = new Date();
+    private final List<Event> events = new ArrayList<Event>();
+    private boolean finished;
+
+    /**
+     * Create a new trace.
+     *
+     * @param dir the directory to write the trace to
+     * @param name the name of what is being launched
+     */
+    public LaunchTrace(File dir, String name) {
+        this.dir = dir;
+        this.name = name;
+    }
+
+    /**
+     * Get a trace that doesn't record anything.
+     *
+     * @return the trace
+     */
+    public static LaunchTrace disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Start a step. The step ends when the returned span is closed, which
+     * may happen on another thread.
+     *
+     * @param name the name of the step
+     * @return the span
+     */
+    public Span begin(String name) {
+        return new Span(name, System.nanoTime(), Thread.currentThread());
+    }
+
+    /**
+     * Record that something happened.
+     *
+     * @param name the name of the event
+     */
+    public void mark(String name) {
+        if (this == DISABLED) {
+            return;
+        }
+
+        Event event = createEvent(name, "i", System.nanoTime(), Thread.currentThread());
+        event.setS("g");
+        add(event);
+    }
+
+    /**
+     * Finish the trace, writing it to disk and a summary to the log. Only
+     * the first call has any effect.
+     *
+     * @param outcome how the launch ended
+     */
+    public void finish(String outcome) {
+        List<Event> events;
+
+        synchronized (this) {
+            if (this == DISABLED || finished) {
+                return;
+            }
+            finished = true;
+            events = new ArrayList<Event>(this.events);
+        }
+
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event o1, Event o2) {
+                return Double.compare(o1.getTs(), o2.getTs());
+            }
+        });
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Launch of %s (%s) after %.1f ms:", name, outcome, (System.nanoTime() - origin) / 1e6));
+        for (Event event : events) {
+            summary.append(String.format("%n  %8.1f ms  ", event.getTs() / 1000));
+            if (event.getPh().equals("X")) {
+                summary.append(String.format("%s took %.1f ms", event.getName(), event.getDur() / 1000));
+            } else {
+                summary.append(event.getName());
+            }
+        }
+        log.info(summary.toString());
+
+        TraceFile trace = new TraceFile();
+        trace.getTraceEvents().addAll(events);
+        trace.getOtherData().put("name", name);
+        trace.getOtherData().put("outcome", outcome);
+        trace.getOtherData().put("started", started.toString());
+
+        File file = new File(dir, "launch-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(started) + ".json");
+        try {
+            Persistence.write(file, trace);
+            log.info("Launch trace written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write the launch trace", e);
+        }
+
+        removeOldTraces();
+    }
+
+    private void removeOldTraces() {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= MAX_TRACE_FILES) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (int i = 0; i < files.length - MAX_TRACE_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private synchronized void add(Event event) {
+        if (!finished) {
+            events.add(event);
+        }
+    }
+
+    private Event createEvent(String name, String phase, long time, Thread thread) {
+        Event event = new Event();
+        event.setName(name);
+        event.setPh(phase);
+        event.setTs((time - origin) / 1000.0);
+        event.setTid(thread.getId());
+        event.getArgs().put("thread", thread.getName());
+        return event;
+    }
+
+    /**
+     * A step of the launch that is in progress.
+     */
+    public class Span implements AutoCloseable {
+        private final String name;
+        private final long start;
+        private final Thread thread;
+        private boolean closed;
+
+        private Span(String name, long start, Thread thread) {
+            this.name = name;
+            this.start = start;
+            this.thread = thread;
+        }
+
+        /**
+         * End the step. Only the first call has any effect.
+         */
+        @Override
+        public void close() {
+            long end = System.nanoTime();
+
+            synchronized (this) {
+                if (LaunchTrace.this == DISABLED || closed) {
+                    return;
+                }
+                closed = true;
+            }
+
+            Event event = createEvent(name, "X", start, thread);
+            event.setDur((end - start) / 1000.0);
+            add(event);
+        }
+    }
+
+    @Data
+    public static class TraceFile {
+        private List<Event> traceEvents = new ArrayList<Event>();
+        private String displayTimeUnit = "ms";
+        private Map<String, String> otherData = new LinkedHashMap<String, String>();
+    }
+
+    @Data
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Event {
+        private String name;
+        private String ph;
+        private double ts;
+        private Double dur;
+        private String s;
+        private int pid = 1;
+        private long tid;
+        private Map<String, String> args = new HashMap<String, String>();
+    }
+
+}
@@ -8,14 +8,15 @@ package com.skcraft.launcher.launch;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.Files;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.skcraft.concurrency.DefaultProgress;
 import com.skcraft.concurrency.ProgressObservable;
 import com.skcraft.launcher.*;
 import com.skcraft.launcher.auth.Session;
-import com.skcraft.launcher.install.ZipExtract;
 import com.skcraft.launcher.launch.runtime.JavaRuntime;
 import com.skcraft.launcher.launch.runtime.JavaRuntimeFinder;
 import com.skcraft.launcher.model.minecraft.*;
@@ -32,13 +33,16 @@ import org.apache.commons.lang.text.StrSubstitutor;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.function.BiPredicate;
+import java.util.logging.Level;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
 import static com.skcraft.launcher.util.SharedLocale.tr;
@@ -49,43 +53,58 @@ import static com.skcraft.launcher.util.SharedLocale.tr;
 @Log
 public class Runner implements Callable<Process>, ProgressObservable {
 
+    private static final int LAUNCH_PLAN_VERSION = 3;
+
     private ProgressObservable progress = new DefaultProgress(0, SharedLocale.tr("runner.preparing"));
 
     private final ObjectMapper mapper = new ObjectMapper();
     private final Launcher launcher;
     private final Instance instance;
     private final Session session;
-    private final File extractDir;
     private final BiPredicate<JavaRuntime, JavaVersion> javaRuntimeMismatch;
     @Getter @Setter private Environment environment = Environment.getInstance();
+    @Getter @Setter private LaunchTrace trace = LaunchTrace.disabled();
 
     private VersionManifest versionManifest;
-    private AssetsIndex assetsIndex;
+    private CompactAssetsIndex assetsIndex;
     private File virtualAssetsDir;
     private Configuration config;
     private JavaProcessBuilder builder;
     private AssetsRoot assetsRoot;
     private FeatureList.Mutable featureList;
+    private volatile NativesRoot.Lease natives;
+    private List<NativesRoot.NativeLibrary> nativeLibraries;
+    private JavaVersion javaVersion;
+    private String assetsFingerprint;
 
     /**
      * Create a new instance launcher.
      *  @param launcher the launcher
      * @param instance the instance
      * @param session the session
-     * @param extractDir the directory to extract to
      * @param javaRuntimeMismatch
      */
     public Runner(@NonNull Launcher launcher, @NonNull Instance instance,
-                  @NonNull Session session, @NonNull File extractDir,
+                  @NonNull Session session,
                   BiPredicate<JavaRuntime, JavaVersion> javaRuntimeMismatch) {
         this.launcher = launcher;
         this.instance = instance;
         this.session = session;
-        this.extractDir = extractDir;
         this.javaRuntimeMismatch = javaRuntimeMismatch;
         this.featureList = new FeatureList.Mutable();
     }
 
+    /**
+     * Release the natives directory used by the game, so that it can be
+     * cleaned up once it goes unused. Call this after the game has exited.
+     */
+    public void releaseNatives() {
+        NativesRoot.Lease natives = this.natives;
+        if (natives != null) {
+            natives.close();
+        }
+    }
+
     /**
      * Get the path to the JAR.
      *
@@ -109,13 +128,57 @@ public class Runner implements Callable<Process>, ProgressObservable {
         builder = new JavaProcessBuilder();
         assetsRoot = launcher.getAssets();
 
+        boolean planned;
+        try (LaunchTrace.Span span = trace.begin("Apply launch plan")) {
+            planned = applyLaunchPlan();
+        }
+
+        if (!planned) {
+            try (LaunchTrace.Span span = trace.begin("Resolve launch")) {
+                resolveLaunch();
+            }
+            try (LaunchTrace.Span span = trace.begin("Save launch plan")) {
+                saveLaunchPlan();
+            }
+        }
+
+        addLaunchArgs();
+        addProxyArgs();
+
+        try (LaunchTrace.Span span = trace.begin("Verify Java runtime")) {
+            verifyJavaRuntime();
+        }
+
+        addClassDataSharingArgs();
+
+        ProcessBuilder processBuilder = new ProcessBuilder(builder.buildCommand());
+        processBuilder.directory(instance.getContentDir());
+        Runner.log.info("Launching: " + builder);
+        checkInterrupted();
+
+        progress = new DefaultProgress(1, SharedLocale.tr("runner.startingJava"));
+
+        try (LaunchTrace.Span span = trace.begin("Start process")) {
+            return processBuilder.start();
+        }
+    }
+
+    /**
+     * Work out the command line from the version manifest and assets index.
+     *
+     * @throws Exception on error
+     */
+    private void resolveLaunch() throws Exception {
         // Load manifiests
-        versionManifest = mapper.readValue(instance.getVersionPath(), VersionManifest.class);
+        try (LaunchTrace.Span span = trace.begin("Read version manifest")) {
+            versionManifest = mapper.readValue(instance.getVersionPath(), VersionManifest.class);
+        }
+        javaVersion = versionManifest.getJavaVersion();
 
         // Load assets index
         File assetsFile = assetsRoot.getIndexPath(versionManifest);
-        try {
-            assetsIndex = mapper.readValue(assetsFile, AssetsIndex.class);
+        try (LaunchTrace.Span span = trace.begin("Read assets index")) {
+            assetsIndex = assetsRoot.loadIndex(versionManifest);
         } catch (FileNotFoundException e) {
             instance.setInstalled(false);
             Persistence.commitAndForget(instance);
@@ -129,10 +192,11 @@ public class Runner implements Callable<Process>, ProgressObservable {
         }
 
         // Copy over assets to the tree
-        try {
+        try (LaunchTrace.Span span = trace.begin("Build assets tree")) {
             AssetsRoot.AssetsTreeBuilder assetsBuilder = assetsRoot.createAssetsBuilder(versionManifest);
             progress = assetsBuilder;
             virtualAssetsDir = assetsBuilder.build();
+            assetsFingerprint = assetsBuilder.getFingerprint();
         } catch (LauncherException e) {
             instance.setInstalled(false);
             Persistence.commitAndForget(instance);
@@ -143,26 +207,152 @@ public class Runner implements Callable<Process>, ProgressObservable {
         builder.setMainClass(versionManifest.getMainClass());
 
         addWindowArgs();
-        addLibraries();
+        try (LaunchTrace.Span span = trace.begin("Collect libraries")) {
+            addLibraries();
+        }
         addJvmArgs();
         addJarArgs();
-        addProxyArgs();
         addServerArgs();
         addPlatformArgs();
         addLegacyArgs();
 
         callLaunchModifier();
+    }
 
-        verifyJavaRuntime();
+    /**
+     * Set up the launch from the plan saved by an earlier launch, if there
+     * is one and nothing that went into it has changed since.
+     *
+     * @return true if the plan was used
+     * @throws IOException on I/O error
+     */
+    private boolean applyLaunchPlan() throws IOException {
+        LaunchPlan plan = Persistence.read(getLaunchPlanPath(), LaunchPlan.class, true);
+        if (plan == null || !plan.isIntact()) {
+            return false;
+        }
 
-        ProcessBuilder processBuilder = new ProcessBuilder(builder.buildCommand());
-        processBuilder.directory(instance.getContentDir());
-        Runner.log.info("Launching: " + builder);
-        checkInterrupted();
+        File assetsDir = new File(plan.getAssetsDir());
+        JavaRuntime runtime;
+        try (LaunchTrace.Span span = trace.begin("Select Java runtime")) {
+            runtime = selectRuntime(plan.getJavaVersion());
+        }
+        if (!Objects.equals(plan.getRuntime(), runtime)
+                || !createLaunchPlanKey(runtime).equals(plan.getKey())
+                || !assetsRoot.isTreeBuilt(assetsDir, plan.getAssetsFingerprint())) {
+            return false;
+        }
 
-        progress = new DefaultProgress(1, SharedLocale.tr("runner.startingJava"));
+        log.info("Using the saved launch plan for " + instance.getTitle());
+
+        javaVersion = plan.getJavaVersion();
+        virtualAssetsDir = assetsDir;
+        assetsFingerprint = plan.getAssetsFingerprint();
+        builder.setRuntime(runtime);
+        builder.setMinMemory(plan.getMinMemory());
+        builder.setMaxMemory(plan.getMaxMemory());
+        builder.setMainClass(plan.getMainClass());
+        for (String path : plan.getClassPath()) {
+            builder.classPath(path);
+        }
+        builder.getFlags().addAll(plan.getFlags());
+        builder.getArgs().addAll(plan.getArgs());
+
+        nativeLibraries = plan.getNatives();
+        try (LaunchTrace.Span span = trace.begin("Prepare natives")) {
+            natives = launcher.getNatives().prepare(nativeLibraries);
+        }
+        return true;
+    }
+
+    /**
+     * Save the resolved launch so the next launch can skip resolving it.
+     */
+    private void saveLaunchPlan() {
+        try {
+            LaunchPlan plan = new LaunchPlan();
+            plan.setKey(createLaunchPlanKey(builder.getRuntime()));
+            plan.setJavaVersion(javaVersion);
+            plan.setRuntime(builder.getRuntime());
+            plan.setMinMemory(builder.getMinMemory());
+            plan.setMaxMemory(builder.getMaxMemory());
+            plan.setMainClass(builder.getMainClass());
+            for (File file : builder.getClassPath()) {
+                plan.getClassPath().add(file.getAbsolutePath());
+            }
+            plan.getFlags().addAll(builder.getFlags());
+            plan.getArgs().addAll(builder.getArgs());
+            plan.getNatives().addAll(nativeLibraries);
+            plan.setAssetsDir(virtualAssetsDir.getAbsolutePath());
+            plan.setAssetsFingerprint(assetsFingerprint);
+            Persistence.write(getLaunchPlanPath(), plan);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to save the launch plan for " + instance.getTitle(), e);
+        }
+    }
 
-        return processBuilder.start();
+    private File getLaunchPlanPath() {
+        return new File(instance.getDir(), "launch_plan.json");
+    }
+
+    /**
+     * Create a key that covers everything that goes into the launch plan
+     * other than the session and proxy arguments.
+     *
+     * @param runtime the selected runtime
+     * @return the key
+     * @throws IOException on I/O error
+     */
+    private String createLaunchPlanKey(JavaRuntime runtime) throws IOException {
+        return createLaunchPlanKey(mapper, launcher.getVersion(), environment, launcher.getLibrariesDir(),
+                launcher.getAssets().getDir(), instance, config, runtime);
+    }
+
+    static String createLaunchPlanKey(ObjectMapper mapper, String launcherVersion, Environment environment,
+                                      File librariesDir, File assetsDir, Instance instance,
+                                      Configuration config, JavaRuntime runtime) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher();
+        putKeyPart(hasher, String.valueOf(LAUNCH_PLAN_VERSION));
+        putKeyPart(hasher, launcherVersion);
+        putKeyPart(hasher, environment.toString());
+        putKeyPart(hasher, librariesDir.getAbsolutePath());
+        putKeyPart(hasher, assetsDir.getAbsolutePath());
+        putKeyPart(hasher, getFileKey(instance.getVersionPath()));
+        putKeyPart(hasher, getFileKey(instance.getCustomJarPath()));
+        putKeyPart(hasher, instance.getContentDir().getAbsolutePath());
+        putKeyPart(hasher, mapper.writeValueAsString(instance.getSettings()));
+        putKeyPart(hasher, mapper.writeValueAsString(instance.getLaunchModifier()));
+        putKeyPart(hasher, mapper.writeValueAsString(config));
+        putKeyPart(hasher, runtime != null ? runtime.getDir().getAbsolutePath() : "");
+        return hasher.hash().toString();
+    }
+
+    private static String getFileKey(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static void putKeyPart(Hasher hasher, String value) {
+        hasher.putString(Strings.nullToEmpty(value), Charsets.UTF_8);
+        hasher.putByte((byte) 0);
+    }
+
+    /**
+     * Fill in the arguments that depend on the session or the natives
+     * directory, which are left as placeholders while the rest of the
+     * command line is resolved.
+     *
+     * @throws JsonProcessingException on error
+     */
+    private void addLaunchArgs() throws JsonProcessingException {
+        StrSubstitutor substitutor = new StrSubstitutor(getLaunchSubstitutions());
+        List<String> flags = builder.getFlags();
+        for (int i = 0; i < flags.size(); i++) {
+            flags.set(i, substitutor.replace(flags.get(i)));
+        }
+        List<String> args = builder.getArgs();
+        for (int i = 0; i < args.size(); i++) {
+            args.set(i, substitutor.replace(args.get(i)));
+        }
     }
 
     /**
@@ -174,7 +364,7 @@ public class Runner implements Callable<Process>, ProgressObservable {
 
     private void verifyJavaRuntime() {
         JavaRuntime pickedRuntime = builder.getRuntime();
-        JavaVersion targetVersion = versionManifest.getJavaVersion();
+        JavaVersion targetVersion = javaVersion;
 
         if (pickedRuntime == null || targetVersion == null) {
             return;
@@ -189,6 +379,60 @@ public class Runner implements Callable<Process>, ProgressObservable {
         }
     }
 
+    /**
+     * Add the flags to use a dynamic class data sharing archive if the
+     * instance has it turned on, so that the classes loaded by an earlier
+     * launch don't have to be loaded and verified from scratch again.
+     * </p>
+     * An archive can only be used with the exact runtime and class path that
+     * created it, so it is keyed on both and any other archives for the
+     * instance are deleted. If the runtime rejects the archive anyway, the
+     * game starts without it.
+     */
+    private void addClassDataSharingArgs() {
+        if (!instance.getSettings().isClassDataSharing()) {
+            return;
+        }
+
+        JavaRuntime runtime = builder.getRuntime();
+        if (runtime == null || runtime.getMajorVersion() < 13) {
+            log.info("Not using class data sharing because it needs a known Java 13+ runtime");
+            return;
+        }
+
+        File dir = new File(instance.getDir(), "cds");
+        String key = Hashing.sha1().hashString(runtime.getVersion() + "\n"
+                + runtime.getDir().getAbsolutePath() + "\n"
+                + builder.buildClassPath(), Charsets.UTF_8).toString();
+        File archive = new File(dir, key + ".jsa");
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(archive)) {
+                    log.info("Removing outdated class data sharing archive " + file.getAbsolutePath());
+                    file.delete();
+                }
+            }
+        }
+        dir.mkdirs();
+
+        List<String> flags = builder.getFlags();
+        if (runtime.getMajorVersion() >= 19) {
+            // Newer runtimes create (and recreate) the archive on their own
+            log.info("Using class data sharing archive " + archive.getAbsolutePath() + " (auto-create)");
+            flags.add("-XX:+AutoCreateSharedArchive");
+            flags.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        } else if (archive.exists()) {
+            log.info("Using class data sharing archive " + archive.getAbsolutePath());
+            flags.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        } else {
+            log.info("Creating class data sharing archive " + archive.getAbsolutePath() + " when the game exits");
+            flags.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        }
+        flags.add("-Xshare:auto");
+    }
+
     /**
      * Add platform-specific arguments.
      */
@@ -206,7 +450,9 @@ public class Runner implements Callable<Process>, ProgressObservable {
     /**
      * Add libraries.
      */
-    private void addLibraries() throws LauncherException {
+    private void addLibraries() throws LauncherException, IOException {
+        nativeLibraries = new ArrayList<NativesRoot.NativeLibrary>();
+
         // Add libraries to classpath or extract the libraries as necessary
         for (Library library : versionManifest.getLibraries()) {
             if (!library.matches(environment)) {
@@ -218,9 +464,8 @@ public class Runner implements Callable<Process>, ProgressObservable {
             if (path.exists()) {
                 Library.Extract extract = library.getExtract();
                 if (extract != null) {
-                    ZipExtract zipExtract = new ZipExtract(Files.asByteSource(path), extractDir);
-                    zipExtract.setExclude(extract.getExclude());
-                    zipExtract.run();
+                    nativeLibraries.add(new NativesRoot.NativeLibrary(path, library.getPath(environment),
+                            library.getArtifact(environment).getSha1(), extract.getExclude()));
                 } else {
                     builder.classPath(path);
                 }
@@ -234,6 +479,28 @@ public class Runner implements Callable<Process>, ProgressObservable {
 
         // The official launcher puts the vanilla jar at the end of the classpath, we'll do the same
         builder.classPath(getJarPath());
+
+        // Natives only have to be extracted the first time they are used
+        try (LaunchTrace.Span span = trace.begin("Prepare natives")) {
+            natives = launcher.getNatives().prepare(nativeLibraries);
+        }
+    }
+
+    /**
+     * Pick the Java runtime to launch with.
+     *
+     * @param javaVersion the Java version the game wants, or null
+     * @return the runtime, or null to use the one on the PATH
+     */
+    private JavaRuntime selectRuntime(JavaVersion javaVersion) {
+        return Optional.ofNullable(instance.getSettings().getRuntime())
+                .orElseGet(() -> {
+                    List<JavaRuntime> runtimes = launcher.getRuntimeRegistry().getRuntimes();
+                    return Optional.ofNullable(javaVersion)
+                            .flatMap(version -> JavaRuntimeFinder.findBestJavaRuntime(runtimes, version))
+                            .orElseGet(() -> JavaRuntimeFinder.findNewestRuntime(runtimes)
+                                    .orElse(config.getJavaRuntime()));
+                });
     }
 
     /**
@@ -267,15 +534,10 @@ public class Runner implements Callable<Process>, ProgressObservable {
         builder.setMinMemory(minMemory);
         builder.setMaxMemory(maxMemory);
 
-        JavaRuntime selectedRuntime = Optional.ofNullable(instance.getSettings().getRuntime())
-                .orElseGet(() -> Optional.ofNullable(versionManifest.getJavaVersion())
-                        .flatMap(JavaRuntimeFinder::findBestJavaRuntime)
-                        .orElseGet(() -> JavaRuntimeFinder.findNewestRuntime()
-                                .orElse(config.getJavaRuntime()))
-                );
-
         // Builder defaults to the PATH `java` if the runtime is null
-        builder.setRuntime(selectedRuntime);
+        try (LaunchTrace.Span span = trace.begin("Select Java runtime")) {
+            builder.setRuntime(selectRuntime(versionManifest.getJavaVersion()));
+        }
 
         List<String> flags = builder.getFlags();
         String[] rawJvmArgsList = new String[] {
@@ -330,7 +592,8 @@ public class Runner implements Callable<Process>, ProgressObservable {
     }
 
     /**
-     * Add proxy arguments.
+     * Add proxy arguments. These are added at every launch rather than
+     * being saved in the launch plan, because they include the password.
      */
     private void addProxyArgs() {
         List<String> args = builder.getArgs();
@@ -395,7 +658,7 @@ public class Runner implements Callable<Process>, ProgressObservable {
 
         if (versionManifest.getMinimumLauncherVersion() < 21) {
             // Add bits that the legacy manifests don't
-            flags.add("-Djava.library.path=" + extractDir.getAbsoluteFile());
+            flags.add("-Djava.library.path=${natives_directory}");
             flags.add("-cp");
             flags.add(builder.buildClassPath());
 
@@ -420,16 +683,17 @@ public class Runner implements Callable<Process>, ProgressObservable {
     }
 
     /**
-     * Build the list of command substitutions.
+     * Build the list of substitutions that can change from one launch to
+     * the next. These are left as placeholders by
+     * {@link #getCommandSubstitutions()}.
      *
      * @return the map of substitutions
      * @throws JsonProcessingException on error
      */
-    private Map<String, String> getCommandSubstitutions() throws JsonProcessingException {
+    private Map<String, String> getLaunchSubstitutions() throws JsonProcessingException {
         Map<String, String> map = new HashMap<String, String>();
 
-        map.put("version_name", versionManifest.getId());
-        map.put("version_type", launcher.getProperties().getProperty("launcherShortname"));
+        map.put("natives_directory", natives.getDir().getAbsolutePath());
 
         map.put("auth_access_token", session.getAccessToken());
         map.put("auth_session", session.getSessionToken());
@@ -440,6 +704,21 @@ public class Runner implements Callable<Process>, ProgressObservable {
         map.put("user_type", session.getUserType().getId());
         map.put("user_properties", mapper.writeValueAsString(session.getUserProperties()));
 
+        return map;
+    }
+
+    /**
+     * Build the list of command substitutions.
+     *
+     * @return the map of substitutions
+     * @throws JsonProcessingException on error
+     */
+    private Map<String, String> getCommandSubstitutions() throws JsonProcessingException {
+        Map<String, String> map = new HashMap<String, String>();
+
+        map.put("version_name", versionManifest.getId());
+        map.put("version_type", launcher.getProperties().getProperty("launcherShortname"));
+
         map.put("game_directory", instance.getContentDir().getAbsolutePath());
         map.put("game_assets", virtualAssetsDir.getAbsolutePath());
         map.put("assets_root", launcher.getAssets().getDir().getAbsolutePath());
@@ -451,7 +730,6 @@ public class Runner implements Callable<Process>, ProgressObservable {
         map.put("launcher_name", launcher.getTitle());
         map.put("launcher_version", launcher.getVersion());
         map.put("classpath", builder.buildClassPath());
-        map.put("natives_directory", extractDir.getAbsolutePath());
 
         // Forge additions
         map.put("library_directory", launcher.getLibrariesDir().getAbsolutePath());
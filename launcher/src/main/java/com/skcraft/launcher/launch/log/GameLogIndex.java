@@ -0,0 +1,137 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch.log;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.base.Charsets;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The index of a game log segment. The segment is split into blocks at
+ * line boundaries, and each block is compressed separately, so a block can
+ * be read on its own once its offset is known.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GameLogIndex {
+
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final Pattern ERROR_PATTERN = Pattern.compile("[/\\[](?:ERROR|FATAL|SEVERE)\\]");
+    private static final Pattern WARNING_PATTERN = Pattern.compile("[/\\[](?:WARN|WARNING)\\]");
+    private static final int LEVEL_SEARCH_LENGTH = 200;
+
+    private long started;
+    private long lines;
+    private long size;
+    private List<Block> blocks = new ArrayList<Block>();
+    @JsonIgnore
+    private boolean partial;
+
+    /**
+     * Find the block that contains the given line.
+     *
+     * @param line the line number, starting from 0
+     * @return the block, or null if the line is out of range
+     */
+    public Block findBlock(long line) {
+        int low = 0;
+        int high = blocks.size() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Block block = blocks.get(mid);
+            if (line < block.getFirstLine()) {
+                high = mid - 1;
+            } else if (line >= block.getFirstLine() + block.getLines()) {
+                low = mid + 1;
+            } else {
+                return block;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Add text written to the segment, which need not be a whole line.
+     *
+     * @param text the text
+     * @param error true if the text came from standard error
+     * @param time the time the text was written
+     */
+    void add(String text, boolean error, long time) {
+        int pos = 0;
+
+        while (pos < text.length()) {
+            int newLine = text.indexOf('\n', pos);
+            int end = newLine != -1 ? newLine + 1 : text.length();
+            String part = text.substring(pos, end);
+
+            Block block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            if (!partial || block == null) {
+                if (block == null || block.getSize() >= BLOCK_SIZE) {
+                    block = new Block();
+                    block.setPosition(size);
+                    block.setFirstLine(lines);
+                    block.setTime(time);
+                    blocks.add(block);
+                }
+
+                int relative = block.getLines();
+                String head = part.length() > LEVEL_SEARCH_LENGTH ? part.substring(0, LEVEL_SEARCH_LENGTH) : part;
+                if (error || ERROR_PATTERN.matcher(head).find()) {
+                    block.getErrors().add(relative);
+                } else if (WARNING_PATTERN.matcher(head).find()) {
+                    block.getWarnings().add(relative);
+                }
+
+                block.setLines(relative + 1);
+                lines++;
+            }
+
+            long length = part.getBytes(Charsets.UTF_8).length;
+            block.setSize(block.getSize() + length);
+            size += length;
+
+            partial = newLine == -1;
+            pos = end;
+        }
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Block {
+        /**
+         * Where the block starts in the uncompressed text.
+         */
+        private long position;
+        /**
+         * The length of the block's uncompressed text.
+         */
+        private long size;
+        /**
+         * Where the block starts in the compressed file.
+         */
+        private long offset;
+        /**
+         * The length of the block in the compressed file.
+         */
+        private long length;
+        private long firstLine;
+        private int lines;
+        private long time;
+        private List<Integer> warnings = new ArrayList<Integer>();
+        private List<Integer> errors = new ArrayList<Integer>();
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch.log;
+
+import com.google.common.base.Charsets;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Writes the output of a game session to the game logs of its instance,
+ * starting a new segment whenever the current one gets too big. Finished
+ * segments are compressed in the background.
+ */
+@Log
+public class GameLogWriter implements Closeable {
+
+    private static final long SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int MAX_PENDING_LENGTH = 64 * 1024;
+    private static final Set<File> active = Collections.synchronizedSet(new HashSet<File>());
+
+    private final GameLogs logs;
+    private final Executor executor;
+    private final String session;
+    private int segment;
+    private File file;
+    private Writer out;
+    private GameLogIndex index;
+    private final StringBuilder pendingOutput = new StringBuilder();
+    private final StringBuilder pendingError = new StringBuilder();
+    private long lastFlush;
+    private boolean closed;
+
+    /**
+     * Start capturing a new session.
+     *
+     * @param logs the game logs to write to
+     * @param executor the executor to compress finished segments on
+     * @throws IOException on I/O error
+     */
+    public GameLogWriter(@NonNull GameLogs logs, @NonNull Executor executor) throws IOException {
+        this.logs = logs;
+        this.executor = executor;
+        this.session = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+
+        openSegment();
+
+        executor.execute(() -> {
+            logs.recover(copyActive());
+            logs.trim(copyActive());
+        });
+    }
+
+    /**
+     * Write output from the game. Only whole lines are written, and the
+     * rest is kept for each stream separately until its line is finished,
+     * so that a line of standard output is never joined with one of
+     * standard error.
+     *
+     * @param text the text, which need not be a whole line
+     * @param error true if the text came from standard error
+     */
+    public synchronized void write(String text, boolean error) {
+        if (closed) {
+            return;
+        }
+
+        StringBuilder pending = error ? pendingError : pendingOutput;
+        pending.append(text);
+
+        int end = pending.lastIndexOf("\n") + 1;
+        if (end == 0) {
+            if (pending.length() < MAX_PENDING_LENGTH) {
+                return;
+            }
+            // Don't hold on to output that never ends its line
+            pending.append('\n');
+            end = pending.length();
+        }
+
+        String lines = pending.substring(0, end);
+        pending.delete(0, end);
+        append(lines, error);
+    }
+
+    private void append(String text, boolean error) {
+        long now = System.currentTimeMillis();
+
+        try {
+            out.write(text);
+            index.add(text, error, now);
+
+            if (index.getSize() >= SEGMENT_SIZE && !index.isPartial()) {
+                finishSegment();
+                openSegment();
+            } else if (now - lastFlush >= FLUSH_INTERVAL) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write to the game log " + file.getAbsolutePath() + ", so it will be incomplete", e);
+            closed = true;
+            closeQuietly(out);
+            active.remove(file);
+        }
+    }
+
+    private void appendPending(StringBuilder pending, boolean error) {
+        if (!closed && pending.length() > 0) {
+            pending.append('\n');
+            append(pending.toString(), error);
+            pending.setLength(0);
+        }
+    }
+
+    /**
+     * Finish the session, compressing the last segment in the background.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        appendPending(pendingOutput, false);
+        appendPending(pendingError, true);
+
+        if (closed) {
+            // Writing the last lines failed
+            return;
+        }
+
+        closed = true;
+
+        try {
+            finishSegment();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to finish the game log " + file.getAbsolutePath(), e);
+            active.remove(file);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        logs.getDir().mkdirs();
+
+        do {
+            file = new File(logs.getDir(), String.format("%s-%02d.log", session, segment++));
+        } while (file.exists());
+
+        active.add(file);
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+        index = new GameLogIndex();
+        index.setStarted(System.currentTimeMillis());
+        lastFlush = index.getStarted();
+    }
+
+    private void finishSegment() throws IOException {
+        out.close();
+
+        final File file = this.file;
+        final GameLogIndex index = this.index;
+        executor.execute(() -> {
+            logs.compress(file, index);
+            active.remove(file);
+            logs.trim(copyActive());
+        });
+    }
+
+    private static Set<File> copyActive() {
+        synchronized (active) {
+            return new HashSet<File>(active);
+        }
+    }
+
+}
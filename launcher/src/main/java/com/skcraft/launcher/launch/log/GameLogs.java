@@ -0,0 +1,417 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch.log;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * The captured game output of an instance, split into segments.
+ * </p>
+ * The segment being written is plain text. Once it is done, it is
+ * compressed block by block and saved with a {@link GameLogIndex}, which
+ * makes it possible to jump to a line, or to the warnings and errors,
+ * without decompressing the whole segment. The oldest segments are deleted
+ * once all of them take up more than {@link #MAX_TOTAL_SIZE}.
+ */
+@Log
+public class GameLogs {
+
+    public static final long MAX_TOTAL_SIZE = 256 * 1024 * 1024;
+
+    private static final String PLAIN_EXT = ".log";
+    private static final String COMPRESSED_EXT = ".log.gz";
+    private static final String INDEX_EXT = ".json";
+    private static final long ORPHAN_AGE = 60 * 1000;
+    private static final Object lock = new Object();
+
+    @Getter
+    private final File dir;
+
+    /**
+     * Create a new instance.
+     *
+     * @param dir the directory of the logs
+     */
+    public GameLogs(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the segments, oldest first. Segments that are still plain text,
+     * such as the one being written, are included.
+     *
+     * @return the segments
+     */
+    public List<File> getSegments() {
+        File[] files = dir.listFiles();
+        List<File> segments = new ArrayList<File>();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(PLAIN_EXT) || file.getName().endsWith(COMPRESSED_EXT)) {
+                    segments.add(file);
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Get the index of a compressed segment.
+     *
+     * @param segment the segment
+     * @return the index, or null if the segment isn't compressed or its
+     *         index is missing
+     */
+    public GameLogIndex getIndex(File segment) {
+        if (!segment.getName().endsWith(COMPRESSED_EXT)) {
+            return null;
+        }
+
+        return Persistence.read(getIndexFile(segment), GameLogIndex.class, true);
+    }
+
+    /**
+     * Read lines from a segment.
+     *
+     * @param segment the segment
+     * @param from the first line to read, starting from 0
+     * @param count the maximum number of lines to read
+     * @return the lines
+     * @throws IOException on I/O error
+     */
+    public List<String> readLines(File segment, long from, int count) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        GameLogIndex index = getIndex(segment);
+
+        if (index == null) {
+            BufferedReader reader = openWhole(segment);
+            try {
+                readLines(reader, from, count, lines);
+            } finally {
+                closeQuietly(reader);
+            }
+            return lines;
+        }
+
+        GameLogIndex.Block block = index.findBlock(from);
+        if (block == null) {
+            return lines;
+        }
+
+        long skip = from - block.getFirstLine();
+        for (int i = index.getBlocks().indexOf(block); i < index.getBlocks().size() && lines.size() < count; i++) {
+            BufferedReader reader = openBlock(segment, index.getBlocks().get(i));
+            try {
+                readLines(reader, skip, count, lines);
+            } finally {
+                closeQuietly(reader);
+            }
+            skip = 0;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Search the segments for lines matching a pattern. Only one block of
+     * a segment is held in memory at a time.
+     *
+     * @param pattern the pattern
+     * @param limit the maximum number of matches to return
+     * @return the matches, oldest first
+     * @throws IOException on I/O error
+     */
+    public List<Match> search(Pattern pattern, int limit) throws IOException {
+        List<Match> matches = new ArrayList<Match>();
+
+        for (File segment : getSegments()) {
+            GameLogIndex index = getIndex(segment);
+
+            if (index == null) {
+                BufferedReader reader = openWhole(segment);
+                try {
+                    search(segment, reader, 0, pattern, limit, matches);
+                } finally {
+                    closeQuietly(reader);
+                }
+            } else {
+                for (GameLogIndex.Block block : index.getBlocks()) {
+                    BufferedReader reader = openBlock(segment, block);
+                    try {
+                        search(segment, reader, block.getFirstLine(), pattern, limit, matches);
+                    } finally {
+                        closeQuietly(reader);
+                    }
+                    if (matches.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+
+            if (matches.size() >= limit) {
+                break;
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Compress a finished segment.
+     *
+     * @param segment the plain text segment
+     * @param index the index built while it was written, or null to build one
+     */
+    void compress(File segment, GameLogIndex index) {
+        synchronized (lock) {
+            if (!segment.exists()) {
+                return;
+            }
+
+            String base = segment.getName().substring(0, segment.getName().length() - PLAIN_EXT.length());
+            File target = new File(dir, base + COMPRESSED_EXT);
+            File tempFile = new File(dir, base + COMPRESSED_EXT + ".tmp");
+
+            try {
+                // If writing stopped part way, the index may not match the file
+                if (index == null || index.getSize() != segment.length()) {
+                    index = buildIndex(segment);
+                }
+
+                InputStream in = new BufferedInputStream(new FileInputStream(segment));
+                CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+                try {
+                    for (GameLogIndex.Block block : index.getBlocks()) {
+                        byte[] data = new byte[(int) block.getSize()];
+                        ByteStreams.readFully(in, data);
+
+                        block.setOffset(out.getCount());
+                        GZIPOutputStream gzip = new GZIPOutputStream(new NonClosingOutputStream(out));
+                        gzip.write(data);
+                        gzip.close();
+                        block.setLength(out.getCount() - block.getOffset());
+                    }
+                } finally {
+                    closeQuietly(in);
+                    out.close();
+                }
+
+                // The index goes first, so there is never a compressed segment without one
+                Persistence.write(getIndexFile(target), index);
+                target.delete();
+                if (!tempFile.renameTo(target)) {
+                    throw new IOException("Failed to move " + tempFile.getAbsolutePath() + " to " + target.getAbsolutePath());
+                }
+                segment.delete();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to compress the game log " + segment.getAbsolutePath(), e);
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Compress plain text segments that were left behind by a launcher
+     * that exited while the game was running.
+     *
+     * @param active the segments that are still being written
+     */
+    void recover(Set<File> active) {
+        long now = System.currentTimeMillis();
+
+        for (File segment : getSegments()) {
+            if (segment.getName().endsWith(PLAIN_EXT) && !active.contains(segment)
+                    && now - segment.lastModified() > ORPHAN_AGE) {
+                log.info("Compressing left over game log " + segment.getAbsolutePath());
+                compress(segment, null);
+            }
+        }
+    }
+
+    /**
+     * Delete the oldest segments until all of them fit in
+     * {@link #MAX_TOTAL_SIZE}.
+     *
+     * @param active the segments that are still being written
+     */
+    void trim(Set<File> active) {
+        synchronized (lock) {
+            List<File> segments = getSegments();
+            long total = 0;
+            for (File segment : segments) {
+                total += segment.length();
+            }
+
+            for (File segment : segments) {
+                if (total <= MAX_TOTAL_SIZE) {
+                    break;
+                }
+                if (active.contains(segment)) {
+                    continue;
+                }
+
+                log.info("Removing old game log " + segment.getAbsolutePath());
+                total -= segment.length();
+                segment.delete();
+                getIndexFile(segment).delete();
+            }
+        }
+    }
+
+    private File getIndexFile(File segment) {
+        String name = segment.getName();
+        String base = name.endsWith(COMPRESSED_EXT)
+                ? name.substring(0, name.length() - COMPRESSED_EXT.length())
+                : name.substring(0, name.length() - PLAIN_EXT.length());
+        return new File(dir, base + INDEX_EXT);
+    }
+
+    private static GameLogIndex buildIndex(File segment) throws IOException {
+        GameLogIndex index = new GameLogIndex();
+        index.setStarted(segment.lastModified());
+
+        Reader reader = openPlain(segment);
+        try {
+            char[] buffer = new char[8192];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                index.add(new String(buffer, 0, len), false, segment.lastModified());
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+
+        return index;
+    }
+
+    private static BufferedReader openPlain(File segment) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(segment), Charsets.UTF_8));
+    }
+
+    /**
+     * Open a segment without its index, which is also how a compressed
+     * segment is read if its index is lost, since its blocks together make
+     * up one GZIP stream.
+     */
+    private static BufferedReader openWhole(File segment) throws IOException {
+        if (!segment.getName().endsWith(COMPRESSED_EXT) || segment.length() == 0) {
+            return openPlain(segment);
+        }
+
+        FileInputStream in = new FileInputStream(segment);
+        try {
+            return new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new BufferedInputStream(in)), Charsets.UTF_8));
+        } catch (IOException e) {
+            closeQuietly(in);
+            throw e;
+        }
+    }
+
+    private static BufferedReader openBlock(File segment, GameLogIndex.Block block) throws IOException {
+        FileInputStream in = new FileInputStream(segment);
+        try {
+            in.getChannel().position(block.getOffset());
+            InputStream limited = ByteStreams.limit(new BufferedInputStream(in), block.getLength());
+            return new BufferedReader(new InputStreamReader(new GZIPInputStream(limited), Charsets.UTF_8));
+        } catch (IOException e) {
+            closeQuietly(in);
+            throw e;
+        }
+    }
+
+    private static void readLines(BufferedReader reader, long skip, int count, List<String> lines) throws IOException {
+        String line;
+        while (lines.size() < count && (line = readLine(reader)) != null) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                lines.add(line);
+            }
+        }
+    }
+
+    private static void search(File segment, BufferedReader reader, long firstLine, Pattern pattern,
+                               int limit, List<Match> matches) throws IOException {
+        long number = firstLine;
+        String line;
+        while (matches.size() < limit && (line = readLine(reader)) != null) {
+            if (pattern.matcher(line).find()) {
+                matches.add(new Match(segment, number, line));
+            }
+            number++;
+        }
+    }
+
+    /**
+     * Read a line that ends with <code>\n</code>, which is the only line
+     * ending the index counts, unlike {@link BufferedReader#readLine()}
+     * which also ends a line on a lone <code>\r</code>. Returns null at
+     * the end.
+     */
+    private static String readLine(BufferedReader reader) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * A line that matched a search.
+     */
+    @Data
+    public static class Match {
+        private final File segment;
+        private final long line;
+        private final String text;
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
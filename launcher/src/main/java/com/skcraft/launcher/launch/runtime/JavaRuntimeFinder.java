@@ -26,8 +26,19 @@ public final class JavaRuntimeFinder {
     /**
      * Get all available Java runtimes on the system
      * @return List of available Java runtimes sorted by newest first
+     * @see JavaRuntimeRegistry for a list that is only scanned when needed
      */
     public static List<JavaRuntime> getAvailableRuntimes() {
+        return scanRuntimes(new HashSet<File>());
+    }
+
+    /**
+     * Scan the system for Java runtimes.
+     *
+     * @param watched a set to add the directories that were looked at to
+     * @return List of available Java runtimes sorted by newest first
+     */
+    static List<JavaRuntime> scanRuntimes(Set<File> watched) {
         Environment env = Environment.getInstance();
         PlatformRuntimeFinder runtimeFinder = getRuntimeFinder(env);
 
@@ -36,45 +47,64 @@ public final class JavaRuntimeFinder {
         }
 
         // Add Minecraft javas
-        List<JavaRuntime> mcRuntimes = MinecraftJavaFinder.scanLauncherDirectories(env,
-                runtimeFinder.getLauncherDirectories(env));
+        Set<File> launcherDirs = runtimeFinder.getLauncherDirectories(env);
+        for (File launcherDir : launcherDirs) {
+            File runtimesDir = new File(launcherDir, "runtime");
+            watched.add(runtimesDir);
+            File[] children = runtimesDir.listFiles();
+            if (children != null) {
+                watched.addAll(Arrays.asList(children));
+            }
+        }
+        List<JavaRuntime> mcRuntimes = MinecraftJavaFinder.scanLauncherDirectories(env, launcherDirs);
         Set<JavaRuntime> entries = new HashSet<>(mcRuntimes);
 
         // Add system Javas
-        runtimeFinder.getCandidateJavaLocations().stream()
-                .map(JavaRuntimeFinder::getRuntimeFromPath)
-                .filter(Objects::nonNull)
-                .forEach(entries::add);
+        for (File location : runtimeFinder.getCandidateJavaLocations()) {
+            watched.add(location);
+            if (location.getParentFile() != null) {
+                watched.add(location.getParentFile());
+            }
+
+            JavaRuntime runtime = getRuntimeFromPath(location);
+            if (runtime != null) {
+                entries.add(runtime);
+            }
+        }
 
         // Add extra runtimes
         entries.addAll(runtimeFinder.getExtraRuntimes());
 
+        // An update in place changes the release file, not the directories above it
+        for (JavaRuntime runtime : entries) {
+            watched.add(new File(runtime.getDir(), "release"));
+        }
+
         return entries.stream().sorted().collect(Collectors.toList());
     }
 
     /**
      * Find the best runtime for a given Java version
+     * @param runtimes The runtimes to pick from
      * @param targetVersion Version to match
      * @return Java runtime if available, empty Optional otherwise
      */
-    public static Optional<JavaRuntime> findBestJavaRuntime(JavaVersion targetVersion) {
-        List<JavaRuntime> entries = getAvailableRuntimes();
-
-        return entries.stream().sorted()
+    public static Optional<JavaRuntime> findBestJavaRuntime(List<JavaRuntime> runtimes, JavaVersion targetVersion) {
+        return runtimes.stream().sorted()
                 .filter(runtime -> runtime.getMajorVersion() == targetVersion.getMajorVersion())
                 .findFirst();
     }
 
-    public static Optional<JavaRuntime> findAnyJavaRuntime() {
-        return getAvailableRuntimes().stream().sorted().findFirst();
+    public static Optional<JavaRuntime> findAnyJavaRuntime(List<JavaRuntime> runtimes) {
+        return runtimes.stream().sorted().findFirst();
     }
 
     public static JavaRuntime getRuntimeFromPath(String path) {
         return getRuntimeFromPath(new File(path));
     }
 
-    public static Optional<JavaRuntime> findNewestRuntime() {
-        return getAvailableRuntimes().stream()
+    public static Optional<JavaRuntime> findNewestRuntime(List<JavaRuntime> runtimes) {
+        return runtimes.stream()
                 .max(Comparator.comparingInt(JavaRuntime::getMajorVersion));
     }
 
@@ -0,0 +1,168 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch.runtime;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.base.Objects;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Remembers the Java runtimes found on the system, so that looking for one
+ * doesn't mean scanning the disk (or on some platforms, the registry or an
+ * external command) every time.
+ * </p>
+ * Along with the runtimes, the modification times of the directories that
+ * were scanned are stored. As long as none of them have changed and
+ * <code>JAVA_HOME</code> is the same, the stored list is used as is.
+ * Runtimes that only the platform can tell us about, such as those in the
+ * Windows registry, can't be checked this way, so the list is also
+ * refreshed in the background when the launcher starts.
+ */
+@Log
+public class JavaRuntimeRegistry {
+
+    private static final int VERSION = 1;
+
+    private final File file;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Create a new registry, loading the stored runtimes from the given
+     * file, which will also be used to store them from now on.
+     *
+     * @param file the file
+     */
+    public JavaRuntimeRegistry(@NonNull File file) {
+        this.file = file;
+
+        Snapshot loaded = file.exists() ? Persistence.read(file, Snapshot.class, true) : null;
+        if (loaded != null && loaded.getVersion() == VERSION) {
+            snapshot = loaded;
+        }
+    }
+
+    /**
+     * Get the available runtimes, scanning for them only if the stored list
+     * is missing or out of date.
+     *
+     * @return the runtimes, sorted by preference
+     */
+    public List<JavaRuntime> getRuntimes() {
+        Snapshot current = snapshot;
+        if (current != null && current.isValid()) {
+            return current.toRuntimes();
+        }
+
+        synchronized (this) {
+            // Someone else may have refreshed the list while we were waiting
+            current = snapshot;
+            if (current != null && current.isValid()) {
+                return current.toRuntimes();
+            }
+
+            return refresh();
+        }
+    }
+
+    /**
+     * Scan for runtimes and store the result.
+     *
+     * @return the runtimes, sorted by preference
+     */
+    public synchronized List<JavaRuntime> refresh() {
+        long start = System.currentTimeMillis();
+
+        Set<File> watched = new HashSet<>();
+        List<JavaRuntime> runtimes = JavaRuntimeFinder.scanRuntimes(watched);
+
+        Snapshot scanned = new Snapshot();
+        scanned.setVersion(VERSION);
+        scanned.setJavaHome(System.getenv("JAVA_HOME"));
+        for (File dir : watched) {
+            scanned.getStamps().put(dir.getAbsolutePath(), dir.lastModified());
+        }
+        for (JavaRuntime runtime : runtimes) {
+            scanned.getRuntimes().add(new Entry(runtime));
+        }
+
+        snapshot = scanned;
+
+        log.info("Found " + runtimes.size() + " Java runtime(s) in " + (System.currentTimeMillis() - start) + "ms");
+
+        try {
+            Persistence.write(file, scanned);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to save the list of Java runtimes", e);
+        }
+
+        return scanned.toRuntimes();
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Snapshot {
+        private int version;
+        private String javaHome;
+        private List<Entry> runtimes = new ArrayList<>();
+        private Map<String, Long> stamps = new HashMap<>();
+
+        private boolean isValid() {
+            if (!Objects.equal(javaHome, System.getenv("JAVA_HOME"))) {
+                return false;
+            }
+
+            for (Map.Entry<String, Long> entry : stamps.entrySet()) {
+                if (new File(entry.getKey()).lastModified() != entry.getValue()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private List<JavaRuntime> toRuntimes() {
+            List<JavaRuntime> list = new ArrayList<>();
+            for (Entry entry : runtimes) {
+                list.add(entry.toRuntime());
+            }
+            return list;
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Entry {
+        private String dir;
+        private String version;
+        private boolean arch64Bit;
+        private boolean minecraftBundled;
+
+        private Entry(JavaRuntime runtime) {
+            this.dir = runtime.getDir().getAbsolutePath();
+            this.version = runtime.getVersion();
+            this.arch64Bit = runtime.is64Bit();
+            this.minecraftBundled = runtime.isMinecraftBundled();
+        }
+
+        private JavaRuntime toRuntime() {
+            JavaRuntime runtime = new JavaRuntime(new File(dir), version, arch64Bit);
+            runtime.setMinecraftBundled(minecraftBundled);
+            return runtime;
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.model.minecraft;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.skcraft.launcher.AssetsRoot;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A read-only asset index that takes a fraction of the memory of a map of
+ * {@link Asset} objects. The paths are kept sorted in a single table (and
+ * shared with any other index that has the same paths), the hashes are
+ * packed into one byte array, twenty bytes each, and the sizes are kept in
+ * an <code>int</code> array.
+ * </p>
+ * It can be parsed from the JSON index without building the intermediate
+ * map, and saved to and loaded from a much faster binary form.
+ */
+public class CompactAssetsIndex {
+
+    private static final int MAGIC = 0x534b4149; // SKAI
+    private static final int FORMAT_VERSION = 1;
+    private static final int HASH_LENGTH = 20;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final Interner<String> paths = Interners.newWeakInterner();
+
+    @Getter
+    private final boolean virtual;
+    private final String[] names;
+    private final byte[] hashes;
+    private final int[] sizes;
+
+    private CompactAssetsIndex(boolean virtual, String[] names, byte[] hashes, int[] sizes) {
+        this.virtual = virtual;
+        this.names = names;
+        this.hashes = hashes;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Get the number of assets.
+     *
+     * @return the number of assets
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get the path of an asset. Assets are sorted by path.
+     *
+     * @param index the index of the asset
+     * @return the path, such as <code>minecraft/sounds/ambient/cave/cave1.ogg</code>
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Get the SHA-1 hash of an asset.
+     *
+     * @param index the index of the asset
+     * @return the hash in lowercase hexadecimal
+     */
+    public String getHash(int index) {
+        char[] hex = new char[HASH_LENGTH * 2];
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int b = hashes[offset + i] & 0xff;
+            hex[i * 2] = HEX[b >>> 4];
+            hex[i * 2 + 1] = HEX[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Get the size of an asset.
+     *
+     * @param index the index of the asset
+     * @return the size in bytes
+     */
+    public int getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * Find an asset by path.
+     *
+     * @param name the path
+     * @return the index of the asset, or -1 if there isn't one
+     */
+    public int indexOf(@NonNull String name) {
+        int index = Arrays.binarySearch(names, name);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Get the local path of an asset.
+     *
+     * @param assetsRoot the assets root
+     * @param name the path of the asset
+     * @return the file, or null if there is no such asset
+     */
+    public File getObjectPath(@NonNull AssetsRoot assetsRoot, @NonNull String name) {
+        int index = indexOf(name);
+        return index != -1 ? assetsRoot.getObjectPath(getHash(index)) : null;
+    }
+
+    /**
+     * Write the index in its binary form.
+     *
+     * @param out the stream to write to
+     * @throws IOException on I/O error
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeBoolean(virtual);
+        out.writeInt(names.length);
+
+        // Neighbouring paths mostly share their directories, so only write what differs
+        String previous = "";
+        for (int i = 0; i < names.length; i++) {
+            int common = commonPrefix(previous, names[i]);
+            out.writeShort(common);
+            out.writeUTF(names[i].substring(common));
+            out.writeInt(sizes[i]);
+            previous = names[i];
+        }
+
+        out.write(hashes);
+    }
+
+    /**
+     * Read an index written by {@link #write(DataOutputStream)}.
+     *
+     * @param in the stream to read from
+     * @return the index
+     * @throws IOException on I/O error or if the data is not a valid index
+     */
+    public static CompactAssetsIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a compact asset index");
+        }
+
+        boolean virtual = in.readBoolean();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad asset count " + count);
+        }
+
+        String[] names = new String[count];
+        int[] sizes = new int[count];
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int common = in.readUnsignedShort();
+            if (common > previous.length()) {
+                throw new IOException("Bad path at asset " + i);
+            }
+            names[i] = paths.intern(previous.substring(0, common) + in.readUTF());
+            sizes[i] = in.readInt();
+            previous = names[i];
+        }
+
+        byte[] hashes = new byte[count * HASH_LENGTH];
+        in.readFully(hashes);
+
+        return new CompactAssetsIndex(virtual, names, hashes, sizes);
+    }
+
+    /**
+     * Parse a JSON asset index, as found in <code>indexes/&lt;id&gt;.json</code>.
+     *
+     * @param in the stream to read from, which is not closed
+     * @return the index
+     * @throws IOException on I/O error or if the JSON is not a valid index
+     */
+    public static CompactAssetsIndex parseJson(InputStream in) throws IOException {
+        Builder builder = new Builder();
+        JsonParser parser = jsonFactory.createParser(new NonClosingInputStream(in));
+
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected an object for the asset index");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (field.equals("virtual")) {
+                    builder.virtual = value == JsonToken.VALUE_TRUE;
+                } else if (field.equals("objects") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.getCurrentName();
+                        if (parser.nextToken() != JsonToken.START_OBJECT) {
+                            throw new IOException("Expected an object for asset " + name);
+                        }
+                        readAsset(parser, name, builder);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        return builder.build();
+    }
+
+    private static void readAsset(JsonParser parser, String name, Builder builder) throws IOException {
+        String hash = null;
+        int size = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("hash")) {
+                hash = parser.getText();
+            } else if (field.equals("size")) {
+                size = parser.getValueAsInt();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (hash == null) {
+            throw new IOException("Asset " + name + " has no hash");
+        }
+
+        builder.add(name, hash, size);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static class Builder {
+        private boolean virtual;
+        private final List<String> names = new ArrayList<String>();
+        private final List<String> hashes = new ArrayList<String>();
+        private final List<Integer> sizes = new ArrayList<Integer>();
+
+        private void add(String name, String hash, int size) throws IOException {
+            if (hash.length() != HASH_LENGTH * 2) {
+                throw new IOException("Asset " + name + " has a bad hash: " + hash);
+            }
+
+            names.add(name);
+            hashes.add(hash);
+            sizes.add(size);
+        }
+
+        private CompactAssetsIndex build() throws IOException {
+            Integer[] order = new Integer[names.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return names.get(o1).compareTo(names.get(o2));
+                }
+            });
+
+            String[] sortedNames = new String[order.length];
+            byte[] packedHashes = new byte[order.length * HASH_LENGTH];
+            int[] sortedSizes = new int[order.length];
+
+            for (int i = 0; i < order.length; i++) {
+                int from = order[i];
+                sortedNames[i] = paths.intern(names.get(from));
+                sortedSizes[i] = sizes.get(from);
+
+                String hash = hashes.get(from);
+                for (int j = 0; j < HASH_LENGTH; j++) {
+                    int high = Character.digit(hash.charAt(j * 2), 16);
+                    int low = Character.digit(hash.charAt(j * 2 + 1), 16);
+                    if (high == -1 || low == -1) {
+                        throw new IOException("Asset " + sortedNames[i] + " has a bad hash: " + hash);
+                    }
+                    packedHashes[i * HASH_LENGTH + j] = (byte) (high << 4 | low);
+                }
+            }
+
+            return new CompactAssetsIndex(virtual, sortedNames, packedHashes, sortedSizes);
+        }
+    }
+
+    private static class NonClosingInputStream extends FilterInputStream {
+        private NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
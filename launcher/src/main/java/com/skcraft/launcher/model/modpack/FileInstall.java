@@ -7,10 +7,9 @@
 package com.skcraft.launcher.model.modpack;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
+import com.skcraft.launcher.ObjectsRoot;
 import com.skcraft.launcher.install.*;
+import com.skcraft.launcher.util.FileUtils;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NonNull;
@@ -27,7 +26,6 @@ import static com.skcraft.launcher.LauncherUtils.concat;
 @EqualsAndHashCode(callSuper = false)
 public class FileInstall extends ManifestEntry {
 
-    private static HashFunction hf = Hashing.sha1();
     private String version;
     private String hash;
     private String location;
@@ -57,20 +55,34 @@ public class FileInstall extends ManifestEntry {
         String fileVersion = getImpliedVersion();
         URL url = concat(getManifest().getObjectsUrl(), getLocation());
 
-        if (shouldUpdate(cache, targetFile)) {
+        if (shouldUpdate(cache, extras, targetFile)) {
             long size = this.size;
             if (size <= 0) {
                 size = 10 * 1024;
             }
 
-            File tempFile = installer.getDownloader().download(url, fileVersion, size, to);
-            installer.queue(new InstallLogFileMover(log, tempFile, targetFile));
+            ObjectsRoot objects = extras.getObjects();
+            if (objects != null && hash != null && !isUserFile()) {
+                // Pull from the shared store if another instance already fetched it
+                File objectFile = objects.getObjectPath(hash);
+                if (!objects.contains(hash)) {
+                    objectFile = installer.getDownloader().download(url, fileVersion, size, to, hash);
+                }
+                InstallLogFileMover mover = new InstallLogFileMover(log, objectFile, targetFile, objects, hash);
+                mover.setFileStates(extras.getFileStates());
+                installer.queue(mover);
+            } else {
+                File tempFile = installer.getDownloader().download(url, fileVersion, size, to, hash);
+                InstallLogFileMover mover = new InstallLogFileMover(log, tempFile, targetFile, null, hash);
+                mover.setFileStates(extras.getFileStates());
+                installer.queue(mover);
+            }
         } else {
             log.add(to, to);
         }
     }
 
-    private boolean shouldUpdate(UpdateCache cache, File targetFile) throws IOException {
+    private boolean shouldUpdate(UpdateCache cache, InstallExtras extras, File targetFile) throws IOException {
         if (targetFile.exists() && isUserFile()) {
             return false;
         }
@@ -80,8 +92,9 @@ public class FileInstall extends ManifestEntry {
         }
 
         if (hash != null) {
-            String existingHash = Files.hash(targetFile, hf).toString();
-            if (existingHash.equalsIgnoreCase(hash)) {
+            FileStateIndex fileStates = extras.getFileStates();
+            String existingHash = fileStates != null ? fileStates.getHash(targetFile) : FileUtils.getShaHash(targetFile);
+            if (hash.equalsIgnoreCase(existingHash)) {
                 return false;
             }
         }
@@ -0,0 +1,116 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.persistence;
+
+import com.google.common.io.ByteSink;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes to a temporary file next to the target file, which then replaces
+ * the target file when the stream is closed. If writing fails, the target
+ * file is left as it was.
+ */
+class AtomicFileByteSink extends ByteSink {
+
+    private final File file;
+
+    public AtomicFileByteSink(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public OutputStream openStream() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+        return new ReplacingOutputStream(new FileOutputStream(tempFile), tempFile);
+    }
+
+    private class ReplacingOutputStream extends FilterOutputStream {
+        private final FileOutputStream fos;
+        private final File tempFile;
+        private boolean failed;
+        private boolean closed;
+
+        private ReplacingOutputStream(FileOutputStream fos, File tempFile) {
+            super(fos);
+            this.fos = fos;
+            this.tempFile = tempFile;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                if (!failed) {
+                    fos.getFD().sync();
+                }
+                fos.close();
+            } catch (IOException e) {
+                failed = true;
+                tempFile.delete();
+                throw e;
+            }
+
+            if (failed) {
+                tempFile.delete();
+                return;
+            }
+
+            try {
+                try {
+                    Files.move(tempFile.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+        }
+    }
+
+}
@@ -14,14 +14,18 @@ import com.google.common.io.ByteSink;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.NonNull;
 import lombok.extern.java.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.WeakHashMap;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
@@ -33,17 +37,46 @@ import java.util.logging.Level;
  * <pre>config = Persistence.load(file, Configuration.class);
  * config.changeSomething();
  * Persistence.commit(config);</pre>
+ * Files are replaced atomically, so a crash while saving leaves the old
+ * contents in place rather than a partly written file.
+ * </p>
+ * {@link #commitAndForget(Object)} takes a copy of the object as it is
+ * at that moment, and a background thread saves the copy shortly
+ * afterwards, so several commits in a row result in one write, and
+ * {@link #flush()} (which also runs when the JVM shuts down) saves
+ * anything still pending. A copy that fails to save is tried again a few
+ * times before the change is given up on.
  */
 @Log
 public final class Persistence {
 
     private static final ObjectMapper mapper = new ObjectMapper();
     private static final WeakHashMap<Object, ByteSink> bound = new WeakHashMap<Object, ByteSink>();
+    private static final WeakHashMap<Object, File> files = new WeakHashMap<Object, File>();
     public static final DefaultPrettyPrinter L2F_LIST_PRETTY_PRINTER;
 
+    private static final long WRITE_DELAY = 200;
+    private static final long SLOW_WRITE = 500;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Map<Object, Snapshot> pending = new IdentityHashMap<Object, Snapshot>();
+    private static final Map<Object, Integer> failures = new IdentityHashMap<Object, Integer>();
+    private static final Object writeLock = new Object();
+    private static final WeakHashMap<Object, Long> written = new WeakHashMap<Object, Long>();
+    private static final AtomicLong sequences = new AtomicLong();
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Persistence writer").setDaemon(true).build());
+    private static boolean scheduled;
+
     static {
         L2F_LIST_PRETTY_PRINTER = new DefaultPrettyPrinter();
         L2F_LIST_PRETTY_PRINTER.indentArraysWith(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "Persistence flush"));
     }
 
     private Persistence() {
@@ -68,33 +101,155 @@ public final class Persistence {
      * @throws java.io.IOException on save error
      */
     public static void commit(@NonNull Object object) throws IOException {
-        ByteSink sink;
-        synchronized (bound) {
-            sink = bound.get(object);
-            if (sink == null) {
-                throw new IOException("Cannot persist unbound object: " + object);
-            }
-        }
+        Snapshot snapshot = snapshot(object);
 
-        Closer closer = Closer.create();
-        try {
-            OutputStream os = closer.register(sink.openBufferedStream());
-            mapper.writeValue(os, object);
-        } finally {
-            closer.close();
+        synchronized (pending) {
+            pending.remove(object);
+            failures.remove(object);
         }
+
+        write(object, snapshot);
     }
 
     /**
-     * Save an object to file, and send all errors to the log.
+     * Save a copy of the object as it is now to file in the background
+     * shortly. All errors are sent to the log.
      *
      * @param object the object
      */
     public static void commitAndForget(@NonNull Object object)  {
+        Snapshot snapshot;
         try {
-            commit(object);
+            snapshot = snapshot(object);
         } catch (IOException e) {
             log.log(Level.WARNING, "Failed to save " + object.getClass() + ": " + object.toString(), e);
+            return;
+        }
+
+        synchronized (pending) {
+            pending.put(object, snapshot);
+            failures.remove(object);
+            schedule(WRITE_DELAY);
+        }
+    }
+
+    private static Snapshot snapshot(Object object) throws IOException {
+        byte[] data = mapper.writeValueAsBytes(object);
+        return new Snapshot(data, sequences.incrementAndGet());
+    }
+
+    private static void schedule(long delay) {
+        if (!scheduled) {
+            scheduled = true;
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Save every object that has been committed but not saved yet.
+     * All errors are sent to the log.
+     */
+    public static void flush() {
+        Map<Object, Snapshot> snapshots;
+        synchronized (pending) {
+            snapshots = new IdentityHashMap<Object, Snapshot>(pending);
+            pending.clear();
+            scheduled = false;
+        }
+
+        write(snapshots);
+    }
+
+    /**
+     * Save the objects waiting to be saved to the given file, if any.
+     *
+     * @param file the file
+     */
+    private static void flush(File file) {
+        Map<Object, Snapshot> snapshots = new IdentityHashMap<Object, Snapshot>();
+        synchronized (pending) {
+            synchronized (bound) {
+                Iterator<Map.Entry<Object, Snapshot>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Object, Snapshot> entry = it.next();
+                    if (file.equals(files.get(entry.getKey()))) {
+                        snapshots.put(entry.getKey(), entry.getValue());
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        write(snapshots);
+    }
+
+    private static void write(Map<Object, Snapshot> snapshots) {
+        for (Map.Entry<Object, Snapshot> entry : snapshots.entrySet()) {
+            Object object = entry.getKey();
+            Snapshot snapshot = entry.getValue();
+
+            try {
+                write(object, snapshot);
+
+                synchronized (pending) {
+                    failures.remove(object);
+                }
+            } catch (IOException e) {
+                synchronized (pending) {
+                    if (pending.containsKey(object)) {
+                        // Committed again in the meantime, so the newer copy will be saved instead
+                        continue;
+                    }
+
+                    Integer attempts = failures.get(object);
+                    attempts = attempts != null ? attempts + 1 : 1;
+
+                    if (attempts < MAX_ATTEMPTS) {
+                        failures.put(object, attempts);
+                        pending.put(object, snapshot);
+                        schedule(WRITE_DELAY * attempts);
+                        log.log(Level.INFO, "Failed to save " + object.getClass() + ", will try again", e);
+                    } else {
+                        failures.remove(object);
+                        log.log(Level.WARNING, "Failed to save " + object.getClass() + ": " + object.toString(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(Object object, Snapshot snapshot) throws IOException {
+        ByteSink sink;
+        synchronized (bound) {
+            sink = bound.get(object);
+            if (sink == null) {
+                throw new IOException("Cannot persist unbound object: " + object);
+            }
+        }
+
+        long start = System.nanoTime();
+
+        // Writes of the same file must not overtake each other
+        synchronized (writeLock) {
+            Long last = written.get(object);
+            if (last != null && last > snapshot.sequence) {
+                // A newer copy was already saved
+                return;
+            }
+            sink.write(snapshot.data);
+            written.put(object, snapshot.sequence);
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (millis >= SLOW_WRITE) {
+            log.warning("Saving " + object.getClass().getSimpleName() + " took " + millis + " ms");
+        } else {
+            log.fine("Saved " + object.getClass().getSimpleName() + " in " + millis + " ms");
         }
     }
 
@@ -177,8 +332,13 @@ public final class Persistence {
      * @return an object
      */
     public static <V> V load(File file, Class<V> cls, boolean returnNull) {
+        file = file.getAbsoluteFile();
+
+        // Don't read back an older copy of something that is waiting to be saved
+        flush(file);
+
         ByteSource source = Files.asByteSource(file);
-        ByteSink sink = new MkdirByteSink(Files.asByteSink(file), file.getParentFile());
+        ByteSink sink = new AtomicFileByteSink(file);
 
         Scrambled scrambled = cls.getAnnotation(Scrambled.class);
         if (cls.getAnnotation(Scrambled.class) != null) {
@@ -187,7 +347,12 @@ public final class Persistence {
         }
 
         V object = read(source, cls, returnNull);
-        Persistence.bind(object, sink);
+        if (object != null) {
+            Persistence.bind(object, sink);
+            synchronized (bound) {
+                files.put(object, file);
+            }
+        }
         return object;
     }
 
@@ -226,12 +391,13 @@ public final class Persistence {
      * @throws java.io.IOException on I/O error
      */
     public static void write(File file, Object object, PrettyPrinter prettyPrinter) throws IOException {
-        file.getParentFile().mkdirs();
+        byte[] data;
         if (prettyPrinter != null) {
-            mapper.writer(prettyPrinter).writeValue(file, object);
+            data = mapper.writer(prettyPrinter).writeValueAsBytes(object);
         } else {
-            mapper.writeValue(file, object);
+            data = mapper.writeValueAsBytes(object);
         }
+        new AtomicFileByteSink(file).write(data);
     }
 
     /**
@@ -249,4 +415,14 @@ public final class Persistence {
         }
     }
 
+    private static class Snapshot {
+        private final byte[] data;
+        private final long sequence;
+
+        private Snapshot(byte[] data, long sequence) {
+            this.data = data;
+            this.sequence = sequence;
+        }
+    }
+
 }
@@ -37,6 +37,7 @@ public class UpdateChecker implements Callable<LatestVersionInfo> {
             URL url = HttpRequest.url(launcher.getProperties().getProperty("selfUpdateUrl"));
 
             LatestVersionInfo versionInfo = HttpRequest.get(url)
+                    .useCache(launcher.getHttpCache())
                     .execute()
                     .expectResponseCode(200)
                     .returnContent()
@@ -6,36 +6,70 @@
 
 package com.skcraft.launcher.swing;
 
-import com.skcraft.launcher.LauncherUtils;
-import com.skcraft.launcher.util.LimitLinesDocumentListener;
+import com.skcraft.launcher.util.LineStore;
+import com.skcraft.launcher.util.SharedLocale;
 import com.skcraft.launcher.util.SimpleLogFormatter;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.text.*;
 import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
+import static com.skcraft.launcher.util.SharedLocale.tr;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 
 /**
  * A simple message log.
+ * </p>
+ * Messages are queued up and added to the log in batches at a fixed
+ * rate, so that a process writing thousands of lines a second doesn't
+ * flood the event dispatch thread. At most as many messages as the log
+ * shows are kept in the queue; if more come in before the next batch, the
+ * oldest are skipped and a note of how many is added to the log.
+ * </p>
+ * Lines are kept in a {@link LineStore} and shown in a list that only
+ * renders the rows in view, so a long log stays cheap to keep and scroll.
  */
 public class MessageLog extends JPanel {
 
     private static final Logger rootLogger = Logger.getLogger("");
+    private static final int FLUSH_INTERVAL = 1000 / 30;
     
     private final int numLines;
     private final boolean colorEnabled;
     
-    protected JTextComponent textComponent;
-    protected Document document;
+    private final LineStore lines;
+    private final LineListModel model = new LineListModel();
+    private final List<AttributeSet> styles = new ArrayList<AttributeSet>();
+    private JList<String> list;
+    private JScrollPane scrollPane;
+    private int widestLine;
+
+    private final ArrayDeque<Message> pending = new ArrayDeque<Message>();
+    private int skipped;
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            flush();
+        }
+    });
 
     private Handler loggerHandler;
     protected final SimpleAttributeSet defaultAttributes = new SimpleAttributeSet();
@@ -47,6 +81,7 @@ public class MessageLog extends JPanel {
     public MessageLog(int numLines, boolean colorEnabled) {
         this.numLines = numLines;
         this.colorEnabled = colorEnabled;
+        this.lines = new LineStore(numLines);
         
         this.highlightedAttributes = new SimpleAttributeSet();
         StyleConstants.setForeground(highlightedAttributes, new Color(0xFF7F00));
@@ -62,47 +97,108 @@ public class MessageLog extends JPanel {
     }
 
     private void initComponents() {
-        if (colorEnabled) {
-            JTextPane text = new JTextPane() {
-                @Override
-                public boolean getScrollableTracksViewportWidth() {
-                    return true;
-                }
-            };
-            this.textComponent = text;
-        } else {
-            JTextArea text = new JTextArea();
-            this.textComponent = text;
-            text.setLineWrap(true);
-            text.setWrapStyleWord(true);
-        }
+        styles.add(defaultAttributes);
 
-        textComponent.setFont(new JLabel().getFont());
-        textComponent.setEditable(false);
-        textComponent.setComponentPopupMenu(TextFieldPopupMenu.INSTANCE);
-        DefaultCaret caret = (DefaultCaret) textComponent.getCaret();
-        caret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
-        document = textComponent.getDocument();
-        document.addDocumentListener(new LimitLinesDocumentListener(numLines, true));
-        
-        JScrollPane scrollText = new JScrollPane(textComponent);
-        scrollText.setBorder(null);
-        scrollText.setVerticalScrollBarPolicy(
+        list = new JList<String>(model);
+        list.setFont(new JLabel().getFont());
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        list.setCellRenderer(new LineRenderer());
+        list.setComponentPopupMenu(createPopupMenu());
+
+        scrollPane = new JScrollPane(list);
+        scrollPane.setBorder(null);
+        scrollPane.setVerticalScrollBarPolicy(
                 ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
-        scrollText.setHorizontalScrollBarPolicy(
-                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        scrollPane.setHorizontalScrollBarPolicy(
+                ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         
-        add(scrollText, BorderLayout.CENTER);
+        add(scrollPane, BorderLayout.CENTER);
+    }
+
+    private JPopupMenu createPopupMenu() {
+        JPopupMenu menu = new JPopupMenu();
+
+        JMenuItem copyItem = new JMenuItem(SharedLocale.tr("context.copy"), 'C');
+        copyItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copySelection();
+            }
+        });
+        menu.add(copyItem);
+
+        menu.addSeparator();
+
+        JMenuItem selectAllItem = new JMenuItem(SharedLocale.tr("context.selectAll"), 'A');
+        selectAllItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (lines.size() > 0) {
+                    list.setSelectionInterval(0, lines.size() - 1);
+                }
+            }
+        });
+        menu.add(selectAllItem);
+
+        return menu;
+    }
+
+    /**
+     * Copy the selected lines to the clipboard, or all of them if none
+     * are selected.
+     */
+    private void copySelection() {
+        flush();
+
+        StringBuilder builder = new StringBuilder();
+        boolean all = list.isSelectionEmpty();
+        for (int i = 0; i < lines.size(); i++) {
+            if (all || list.isSelectedIndex(i)) {
+                builder.append(lines.get(i)).append("\n");
+            }
+        }
+
+        Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(builder.toString()), null);
     }
     
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        flushTimer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        flushTimer.stop();
+        super.removeNotify();
+    }
+
     public String getPastableText() {
-        String text = textComponent.getText().replaceAll("[\r\n]+", "\n");
+        flush();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (!line.isEmpty()) {
+                builder.append(line).append("\n");
+            }
+        }
+        String text = builder.toString();
         text = text.replaceAll("Session ID is [A-Fa-f0-9]+", "Session ID is [redacted]");
         return text;
     }
 
     public void clear() {
-        textComponent.setText("");
+        synchronized (pending) {
+            pending.clear();
+            skipped = 0;
+        }
+        int size = lines.size();
+        lines.clear();
+        widestLine = 0;
+        list.setFixedCellWidth(-1);
+        if (size > 0) {
+            model.fireRemoved(0, size - 1);
+        }
     }
     
     /**
@@ -111,29 +207,115 @@ public class MessageLog extends JPanel {
      * @param line line
      * @param attributes attribute set, or null for none
      */
-    public void log(final String line, AttributeSet attributes) {
-        final Document d = document;
-        final JTextComponent t = textComponent;
+    public void log(String line, AttributeSet attributes) {
         if (colorEnabled) {
             if (line.startsWith("(!!)")) {
                 attributes = highlightedAttributes;
             }
         }
-        final AttributeSet a = attributes;
-        
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    int offset = d.getLength();
-                    d.insertString(offset, line,
-                            (a != null && colorEnabled) ? a : defaultAttributes);
-                    t.setCaretPosition(d.getLength());
-                } catch (BadLocationException ble) {
-                
-                }
+
+        Message message = new Message(line, (attributes != null && colorEnabled) ? attributes : defaultAttributes);
+
+        synchronized (pending) {
+            // Anything older than this would be scrolled out of the log by the next flush anyway
+            if (pending.size() >= numLines) {
+                pending.removeFirst();
+                skipped++;
             }
-        });
+            pending.addLast(message);
+        }
+    }
+
+    /**
+     * Add the queued messages to the log. Must be called from the
+     * event dispatch thread.
+     */
+    private void flush() {
+        List<Message> messages;
+        int skipped;
+
+        synchronized (pending) {
+            if (pending.isEmpty() && this.skipped == 0) {
+                return;
+            }
+
+            messages = new ArrayList<Message>(pending);
+            skipped = this.skipped;
+            pending.clear();
+            this.skipped = 0;
+        }
+
+        JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+        boolean following = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - list.getFixedCellHeight();
+        int oldSize = lines.size();
+        int dropped = 0;
+
+        if (skipped > 0) {
+            dropped += lines.append(tr("console.linesSkipped", skipped) + "\n", getStyle(highlightedAttributes));
+        }
+        for (Message message : messages) {
+            dropped += lines.append(message.text, getStyle(message.attributes));
+        }
+
+        int kept = oldSize - Math.min(dropped, oldSize);
+        if (kept < oldSize) {
+            model.fireRemoved(0, oldSize - kept - 1);
+        }
+        if (lines.size() > kept) {
+            model.fireAdded(kept, lines.size() - 1);
+        }
+        // The last line may have been continued, so it has to be redrawn
+        if (kept > 0) {
+            model.fireChanged(kept - 1, kept - 1);
+        }
+
+        updateWidth(Math.max(0, kept - 1));
+
+        if (following && lines.size() > 0) {
+            scrollPane.validate();
+            list.ensureIndexIsVisible(lines.size() - 1);
+        }
+    }
+
+    /**
+     * Widen the list to fit the widest line seen so far.
+     *
+     * @param from the index of the first line that may have changed
+     */
+    private void updateWidth(int from) {
+        FontMetrics metrics = list.getFontMetrics(list.getFont());
+        int widest = widestLine;
+        for (int i = from; i < lines.size(); i++) {
+            widest = Math.max(widest, metrics.stringWidth(toDisplayText(lines.get(i))));
+        }
+
+        if (widest != widestLine) {
+            widestLine = widest;
+            list.setFixedCellWidth(widest + 10);
+        }
+    }
+
+    private static String toDisplayText(String line) {
+        return line.replace("\t", "    ");
+    }
+
+    /**
+     * Get the style number of an attribute set, registering it if it is
+     * new. Must be called from the event dispatch thread.
+     *
+     * @param attributes the attribute set
+     * @return the style number
+     */
+    private int getStyle(AttributeSet attributes) {
+        int index = styles.indexOf(attributes);
+        if (index == -1) {
+            if (styles.size() > Byte.MAX_VALUE) {
+                return 0;
+            }
+            styles.add(attributes);
+            index = styles.size() - 1;
+        }
+        return index;
     }
     
     /**
@@ -172,9 +354,10 @@ public class MessageLog extends JPanel {
      * will be in a separate daemon thread.
      * 
      * @param from stream to read
+     * @return the consumer thread
      */
-    public void consume(InputStream from) {
-        consume(from, getOutputStream());
+    public Thread consume(InputStream from) {
+        return consume(from, (AttributeSet) null, null);
     }
 
     /**
@@ -183,9 +366,12 @@ public class MessageLog extends JPanel {
      * 
      * @param from stream to read
      * @param color color to use
+     * @return the consumer thread
      */
-    public void consume(InputStream from, Color color) {
-        consume(from, getOutputStream(color));
+    public Thread consume(InputStream from, Color color) {
+        SimpleAttributeSet attributes = new SimpleAttributeSet();
+        StyleConstants.setForeground(attributes, color);
+        return consume(from, attributes, null);
     }
 
     /**
@@ -194,41 +380,66 @@ public class MessageLog extends JPanel {
      * 
      * @param from stream to read
      * @param attributes attributes
+     * @return the consumer thread
      */
-    public void consume(InputStream from, AttributeSet attributes) {
-        consume(from, getOutputStream(attributes));
+    public Thread consume(InputStream from, AttributeSet attributes) {
+        return consume(from, attributes, null);
     }
-    
+
     /**
-     * Internal method to consume a stream.
+     * Consume an input stream and print it to the dialog. The consumer
+     * will be in a separate daemon thread. The stream is decoded with the
+     * platform charset and split into lines on that thread.
      * 
-     * @param from stream to consume
-     * @param outputStream console stream to write to
+     * @param from stream to read
+     * @param attributes attributes
+     * @param tee a consumer to also pass the text to, or null
+     * @return the consumer thread
      */
-    private void consume(InputStream from, ConsoleOutputStream outputStream) {
-        final InputStream in = from;
-        final PrintWriter out = new PrintWriter(outputStream, true);
+    public Thread consume(InputStream from, final AttributeSet attributes, final Consumer<String> tee) {
+        final Reader in = new InputStreamReader(from, Charset.defaultCharset());
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                byte[] buffer = new byte[1024];
+                char[] buffer = new char[8192];
+                StringBuilder line = new StringBuilder();
                 try {
                     int len;
                     while ((len = in.read(buffer)) != -1) {
-                        String s = new String(buffer, 0, len);
-                        System.out.print(s);
-                        out.append(s);
-                        out.flush();
+                        String text = String.valueOf(buffer, 0, len);
+                        if (tee != null) {
+                            tee.accept(text);
+                        }
+
+                        int start = 0;
+                        for (int i = 0; i < len; i++) {
+                            if (buffer[i] == '\n') {
+                                line.append(buffer, start, i + 1 - start);
+                                log(line.toString(), attributes);
+                                line.setLength(0);
+                                start = i + 1;
+                            }
+                        }
+                        line.append(buffer, start, len - start);
+
+                        // Don't hold back a prompt or progress output that doesn't end in a new line
+                        if (line.length() > 0 && !in.ready()) {
+                            log(line.toString(), attributes);
+                            line.setLength(0);
+                        }
                     }
                 } catch (IOException e) {
                 } finally {
+                    if (line.length() > 0) {
+                        log(line.toString(), attributes);
+                    }
                     closeQuietly(in);
-                    closeQuietly(out);
                 }
             }
-        });
+        }, "Console reader");
         thread.setDaemon(true);
         thread.start();
+        return thread;
     }
 
     /**
@@ -318,4 +529,57 @@ public class MessageLog extends JPanel {
         }
     }
 
+    private class LineListModel extends AbstractListModel<String> {
+        @Override
+        public int getSize() {
+            return lines.size();
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines.get(index);
+        }
+
+        private void fireAdded(int from, int to) {
+            fireIntervalAdded(this, from, to);
+        }
+
+        private void fireRemoved(int from, int to) {
+            fireIntervalRemoved(this, from, to);
+        }
+
+        private void fireChanged(int from, int to) {
+            fireContentsChanged(this, from, to);
+        }
+    }
+
+    private class LineRenderer extends DefaultListCellRenderer {
+        private LineRenderer() {
+            // Game output should never be rendered as HTML
+            putClientProperty("html.disable", Boolean.TRUE);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, toDisplayText((String) value), index, isSelected, cellHasFocus);
+
+            AttributeSet attributes = styles.get(lines.getStyle(index));
+            if (!isSelected && attributes.isDefined(StyleConstants.Foreground)) {
+                setForeground(StyleConstants.getForeground(attributes));
+            }
+
+            return this;
+        }
+    }
+
+    private static class Message {
+        private final String text;
+        private final AttributeSet attributes;
+
+        private Message(String text, AttributeSet attributes) {
+            this.text = text;
+            this.attributes = attributes;
+        }
+    }
+
 }
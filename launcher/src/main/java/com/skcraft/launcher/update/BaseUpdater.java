@@ -27,6 +27,7 @@ import com.skcraft.launcher.persistence.Persistence;
 import com.skcraft.launcher.util.Environment;
 import com.skcraft.launcher.util.FileUtils;
 import com.skcraft.launcher.util.HttpRequest;
+import com.skcraft.launcher.util.ParallelDeleter;
 import com.skcraft.launcher.util.SharedLocale;
 import lombok.NonNull;
 import lombok.extern.java.Log;
@@ -80,25 +81,28 @@ public abstract class BaseUpdater {
     protected Manifest installPackage(@NonNull Installer installer, @NonNull Instance instance) throws Exception {
         final File contentDir = instance.getContentDir();
         final File logPath = new File(instance.getDir(), "install_log.json");
+        final File logBinaryPath = new File(instance.getDir(), "install_log.bin");
         final File cachePath = new File(instance.getDir(), "update_cache.json");
         final File featuresPath = new File(instance.getDir(), "features.json");
+        final File fileStatesPath = new File(instance.getDir(), "file_states.json");
 
         // Make sure the temp dir exists
         installer.getTempDir().mkdirs();
 
-        final InstallLog previousLog = Persistence.read(logPath, InstallLog.class);
+        final InstallLog previousLog = InstallLog.read(logBinaryPath, logPath);
         final InstallLog currentLog = new InstallLog();
         currentLog.setBaseDir(contentDir);
         final UpdateCache updateCache = Persistence.read(cachePath, UpdateCache.class);
         final FeatureCache featuresCache = Persistence.read(featuresPath, FeatureCache.class);
+        final FileStateIndex fileStates = Persistence.read(fileStatesPath, FileStateIndex.class);
+        fileStates.setBaseDir(contentDir);
 
         Manifest manifest = HttpRequest
                 .get(instance.getManifestURL())
+                .useCache(launcher.getHttpCache())
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .saveContent(instance.getManifestPath())
-                .asJson(Manifest.class);
+                .returnJson(Manifest.class, instance.getManifestPath());
 
         if (manifest.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
             throw new LauncherException("Update required", SharedLocale.tr("errors.updateRequiredError"));
@@ -151,7 +155,7 @@ public abstract class BaseUpdater {
             loaders.put(entry.getKey(), new LocalLoader(entry.getValue(), localFilesMap));
         }
 
-        InstallExtras extras = new InstallExtras(contentDir, loaders);
+        InstallExtras extras = new InstallExtras(contentDir, loaders, launcher.getObjects(), fileStates);
         for (ManifestEntry entry : manifest.getTasks()) {
             entry.install(installer, currentLog, updateCache, extras);
         }
@@ -159,17 +163,31 @@ public abstract class BaseUpdater {
         executeOnCompletion.add(new Runnable() {
             @Override
             public void run() {
-                for (Map.Entry<String, Set<String>> entry : previousLog.getEntrySet()) {
-                    for (String path : entry.getValue()) {
-                        if (!currentLog.has(path)) {
-                            new File(contentDir, path).delete();
-                        }
-                    }
+                List<File> removed = new ArrayList<File>();
+                for (String path : previousLog.getRemoved(currentLog)) {
+                    removed.add(new File(contentDir, path));
                 }
 
+                // A path that is now a directory may hold newly installed files, so never recurse
+                try {
+                    ParallelDeleter.deleteFiles(removed);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                // The JSON is only a readable export, so write it first to keep the binary form newer
                 writeDataFile(logPath, currentLog);
+                try {
+                    currentLog.write(logBinaryPath);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to write to " + logBinaryPath.getAbsolutePath(), e);
+                }
                 writeDataFile(cachePath, updateCache);
                 writeDataFile(featuresPath, featuresCache);
+
+                fileStates.retain(currentLog);
+                writeDataFile(fileStatesPath, fileStates);
+                launcher.getObjects().save();
             }
         });
 
@@ -185,11 +203,8 @@ public abstract class BaseUpdater {
             long size = artifact.getSize();
             if (size <= 0) size = JAR_SIZE_ESTIMATE;
 
-            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName());
+            File tempFile = installer.getDownloader().download(url, "", size, jarFile.getName(), artifact.getHash());
             installer.queue(new FileMover(tempFile, jarFile));
-            if (artifact.getHash() != null) {
-                installer.queue(new FileVerify(jarFile, jarFile.getName(), artifact.getHash()));
-            }
             log.info("Installing " + jarFile.getName() + " from " + url);
         }
     }
@@ -200,23 +215,28 @@ public abstract class BaseUpdater {
                                  @NonNull List<URL> sources) throws IOException, InterruptedException {
         AssetsRoot assetsRoot = launcher.getAssets();
 
-        AssetsIndex index = HttpRequest
+        CompactAssetsIndex index = HttpRequest
                 .get(indexUrl)
+                .useCache(launcher.getHttpCache())
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .saveContent(assetsRoot.getIndexPath(versionManifest))
-                .asJson(AssetsIndex.class);
+                .returnContent(new HttpRequest.ContentReader<CompactAssetsIndex>() {
+                    @Override
+                    public CompactAssetsIndex read(InputStream in) throws IOException {
+                        return CompactAssetsIndex.parseJson(in);
+                    }
+                }, assetsRoot.getIndexPath(versionManifest));
+        assetsRoot.putIndex(versionManifest, index);
 
         // Keep track of duplicates
         Set<String> downloading = new HashSet<String>();
 
-        for (Map.Entry<String, Asset> entry : index.getObjects().entrySet()) {
+        for (int i = 0; i < index.size(); i++) {
             checkInterrupted();
 
-            String hash = entry.getValue().getHash();
+            String hash = index.getHash(i);
             String path = String.format("%s/%s", hash.subSequence(0, 2), hash);
-            File targetFile = assetsRoot.getObjectPath(entry.getValue());
+            File targetFile = assetsRoot.getObjectPath(hash);
 
             if (!targetFile.exists() && !downloading.contains(path)) {
                 List<URL> urls = new ArrayList<URL>();
@@ -229,7 +249,7 @@ public abstract class BaseUpdater {
                 }
 
                 File tempFile = installer.getDownloader().download(
-                        urls, "", entry.getValue().getSize(), entry.getKey());
+                        urls, "", index.getSize(i), index.getName(i), hash);
                 installer.queue(new FileMover(tempFile, targetFile));
                 log.info("Fetching " + path + " from " + urls);
                 downloading.add(path);
@@ -273,12 +293,9 @@ public abstract class BaseUpdater {
                     }
 
                     File tempFile = installer.getDownloader().download(urls, "", size,
-                            library.getName().toString());
+                            library.getName().toString(), artifact.getSha1());
                     log.info("Fetching " + path + " from " + urls);
                     installer.queue(new FileMover(tempFile, targetFile));
-                    if (artifact.getSha1() != null) {
-                        installer.queue(new FileVerify(targetFile, library.getName().toString(), artifact.getSha1()));
-                    }
                 }
             }
         }
@@ -293,7 +310,7 @@ public abstract class BaseUpdater {
 
             if (embeddedConfig == null) {
                 // No embedded config, just use whatever the server gives us
-                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(), file.getId());
+                File tempFile = installer.getDownloader().download(url(file.getUrl()), file.getHash(), file.getSize(), file.getId(), file.getHash());
 
                 log.info("Downloading logging config " + file.getId() + " from " + file.getUrl());
                 installer.queue(new FileMover(tempFile, targetFile));
@@ -0,0 +1,469 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.update;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.skcraft.concurrency.ObservableFuture;
+import com.skcraft.concurrency.ProgressObservable;
+import com.skcraft.launcher.AssetsRoot;
+import com.skcraft.launcher.Instance;
+import com.skcraft.launcher.InstanceList;
+import com.skcraft.launcher.Launcher;
+import com.skcraft.launcher.model.loader.LoaderManifest;
+import com.skcraft.launcher.model.loader.SidedData;
+import com.skcraft.launcher.model.minecraft.CompactAssetsIndex;
+import com.skcraft.launcher.model.minecraft.Library;
+import com.skcraft.launcher.model.minecraft.MavenName;
+import com.skcraft.launcher.model.minecraft.VersionManifest;
+import com.skcraft.launcher.model.modpack.FileInstall;
+import com.skcraft.launcher.model.modpack.Manifest;
+import com.skcraft.launcher.model.modpack.ManifestEntry;
+import com.skcraft.launcher.util.HttpCache;
+import com.skcraft.launcher.util.ParallelDeleter;
+import lombok.Data;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
+import static com.skcraft.launcher.util.SharedLocale.tr;
+
+/**
+ * Removes files in the directories shared between instances (libraries,
+ * versions, assets and the modpack object store) that no instance on disk
+ * uses anymore.
+ * </p>
+ * The files in use are worked out from the version manifest and package
+ * manifest of every instance directory, the cached manifest of every
+ * pending update (whose files may already have been prefetched), and the
+ * asset index of each version. If any of those can't be read, nothing is
+ * removed. Files that were changed recently are also always kept, because
+ * they may belong to an update or prefetch that is still in progress.
+ */
+@Log
+public class SharedFilesCollector {
+
+    private static final long INTERVAL = TimeUnit.DAYS.toMillis(7);
+    private static final long MIN_AGE = TimeUnit.DAYS.toMillis(7);
+
+    private final Launcher launcher;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ObservableFuture<Report> running;
+
+    /**
+     * Create a new collector.
+     *
+     * @param launcher the launcher
+     */
+    public SharedFilesCollector(@NonNull Launcher launcher) {
+        this.launcher = launcher;
+    }
+
+    /**
+     * Start a collection in the background if it is turned on and the last
+     * one was long enough ago.
+     */
+    public synchronized void schedule() {
+        if (!launcher.getConfig().isCollectSharedFiles() || running != null) {
+            return;
+        }
+
+        long last = getMarkerFile().lastModified();
+        if (System.currentTimeMillis() - last < INTERVAL) {
+            return;
+        }
+
+        collect(false);
+    }
+
+    /**
+     * Start a collection, or join the one in progress, in which case the
+     * report may be of a run with a different dry run setting.
+     *
+     * @param dryRun true to only report what would be removed
+     * @return the future, which returns the report
+     */
+    public synchronized ObservableFuture<Report> collect(boolean dryRun) {
+        if (running != null) {
+            return running;
+        }
+
+        CollectionTask task = new CollectionTask(dryRun);
+        final ObservableFuture<Report> future = new ObservableFuture<Report>(
+                launcher.getExecutor().submit(task), task);
+        running = future;
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SharedFilesCollector.this) {
+                    if (running == future) {
+                        running = null;
+                    }
+                }
+            }
+        }, sameThreadExecutor());
+
+        return future;
+    }
+
+    /**
+     * Stop the collection in progress, such as when an update is about to
+     * start and may need files that aren't in use yet.
+     */
+    public synchronized void cancel() {
+        if (running != null) {
+            running.cancel(true);
+            running = null;
+        }
+    }
+
+    private File getMarkerFile() {
+        return new File(launcher.getBaseDir(), "cache/shared_files_collected");
+    }
+
+    /**
+     * A single run of the collector.
+     */
+    private class CollectionTask implements Callable<Report>, ProgressObservable {
+        private final boolean dryRun;
+        private final AssetsRoot assetsRoot = launcher.getAssets();
+        private final Set<File> libraryDirs = new HashSet<File>();
+        private final Set<String> versions = new HashSet<String>();
+        private final Set<String> assetIds = new HashSet<String>();
+        private final Set<String> assetObjects = new HashSet<String>();
+        private final Set<String> objects = new HashSet<String>();
+        private final long cutoff = System.currentTimeMillis() - MIN_AGE;
+        private volatile String status = tr("sharedFiles.checkingStatus");
+
+        private CollectionTask(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        @Override
+        public Report call() throws Exception {
+            Report report = new Report();
+            report.setDryRun(dryRun);
+
+            findFilesInUse();
+
+            File librariesDir = launcher.getLibrariesDir();
+            File assetsDir = assetsRoot.getDir();
+            File objectsDir = launcher.getObjects().getDir();
+
+            // Files directly in the libraries directory (such as logging configs) are always kept
+            libraryDirs.add(librariesDir);
+            findUnusedLibraries(librariesDir, report);
+            findUnusedChildren(launcher.getVersionsDir(), versions, "", Kind.VERSION, report);
+            findUnusedChildren(new File(assetsDir, "indexes"), assetIds, ".json", Kind.ASSET, report);
+            findUnusedChildren(new File(assetsDir, "indexes"), assetIds, ".json.bin", Kind.ASSET, report);
+            findUnusedChildren(new File(assetsDir, "virtual"), assetIds, "", Kind.ASSET, report);
+            findUnusedObjects(new File(assetsDir, "objects"), assetObjects, Kind.ASSET, report);
+            findUnusedObjects(objectsDir, objects, Kind.OBJECT, report);
+
+            if (!dryRun && !report.getFiles().isEmpty()) {
+                status = tr("sharedFiles.deletingStatus");
+                report.getFailures().addAll(ParallelDeleter.delete(report.getFiles()));
+
+                removeEmptyDirs(librariesDir, false);
+                removeEmptyDirs(new File(assetsDir, "objects"), false);
+                removeEmptyDirs(objectsDir, false);
+            }
+
+            if (!dryRun) {
+                File marker = getMarkerFile();
+                marker.getParentFile().mkdirs();
+                if (!marker.createNewFile()) {
+                    marker.setLastModified(System.currentTimeMillis());
+                }
+            }
+
+            log.info(String.format("%s %d unused shared file(s) taking up %.1f MB " +
+                            "(%d libraries, %d versions, %d asset files, %d objects); %d could not be deleted",
+                    dryRun ? "Found" : "Removed", report.getFiles().size(), report.getSize() / 1024.0 / 1024.0,
+                    report.getLibraries(), report.getVersions(), report.getAssets(), report.getObjects(),
+                    report.getFailures().size()));
+
+            return report;
+        }
+
+        private void findFilesInUse() throws IOException, InterruptedException {
+            File[] dirs = launcher.getInstancesDir().listFiles();
+            if (dirs == null) {
+                return;
+            }
+
+            for (File dir : dirs) {
+                checkInterrupted();
+
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+
+                // Unreadable files mean that we can't know what is in use, so give up
+                File versionPath = new File(dir, "version.json");
+                if (versionPath.exists()) {
+                    addVersion(mapper.readValue(versionPath, VersionManifest.class));
+                }
+
+                File manifestPath = new File(dir, "manifest.json");
+                if (manifestPath.exists()) {
+                    addManifest(mapper.readValue(manifestPath, Manifest.class));
+                }
+            }
+
+            HttpCache httpCache = launcher.getHttpCache();
+            for (URL url : getPendingManifestURLs()) {
+                checkInterrupted();
+
+                // Both the prefetcher and the updater fetch the manifest through the cache
+                HttpCache.Entry entry = httpCache.get(url);
+                if (entry != null) {
+                    addManifest(mapper.readValue(entry.getFile(), Manifest.class));
+                }
+            }
+        }
+
+        private List<URL> getPendingManifestURLs() {
+            List<URL> urls = new ArrayList<URL>();
+            InstanceList instances = launcher.getInstances();
+            synchronized (instances) {
+                for (Instance instance : instances.getInstances()) {
+                    if (instance.isLocal() && instance.isUpdatePending() && instance.getManifestURL() != null) {
+                        urls.add(instance.getManifestURL());
+                    }
+                }
+            }
+            return urls;
+        }
+
+        private void addManifest(Manifest manifest) throws IOException {
+            if (manifest.getVersionManifest() != null) {
+                addVersion(manifest.getVersionManifest());
+            }
+
+            for (LoaderManifest loader : manifest.getLoaders().values()) {
+                if (loader.getLibraries() != null) {
+                    for (Library library : loader.getLibraries()) {
+                        addLibrary(library);
+                    }
+                }
+
+                // Processors read and write other artifacts, named like [group:name:version:classifier]
+                if (loader.getSidedData() != null) {
+                    for (SidedData<String> data : loader.getSidedData().values()) {
+                        addMavenReference(data.getClient());
+                        addMavenReference(data.getServer());
+                    }
+                }
+            }
+
+            for (ManifestEntry entry : manifest.getTasks()) {
+                if (entry instanceof FileInstall) {
+                    String hash = ((FileInstall) entry).getHash();
+                    if (hash != null) {
+                        objects.add(hash.toLowerCase());
+                    }
+                }
+            }
+        }
+
+        private void addVersion(VersionManifest version) throws IOException {
+            versions.add(version.getId());
+
+            if (version.getLibraries() != null) {
+                for (Library library : version.getLibraries()) {
+                    addLibrary(library);
+                }
+            }
+
+            String assetId = version.getAssetId();
+            if (assetIds.add(assetId)) {
+                try {
+                    CompactAssetsIndex index = assetsRoot.loadIndex(version);
+                    for (int i = 0; i < index.size(); i++) {
+                        assetObjects.add(index.getHash(i));
+                    }
+                } catch (FileNotFoundException e) {
+                    // Not downloaded yet, so none of its assets are either
+                }
+            }
+        }
+
+        private void addLibrary(Library library) {
+            File librariesDir = launcher.getLibrariesDir();
+
+            // Whole version directories are kept, which covers natives for other platforms
+            if (library.getName() != null) {
+                libraryDirs.add(new File(librariesDir, library.getName().getFilePath()).getParentFile());
+            }
+
+            if (library.getDownloads() != null) {
+                for (Library.Artifact artifact : library.getDownloads().getAllArtifacts()) {
+                    if (artifact.getPath() != null) {
+                        libraryDirs.add(new File(librariesDir, artifact.getPath()).getParentFile());
+                    }
+                }
+            }
+        }
+
+        private void addMavenReference(String value) {
+            if (value != null && value.length() > 2 && value.startsWith("[") && value.endsWith("]")) {
+                try {
+                    MavenName name = MavenName.from(value.substring(1, value.length() - 1));
+                    libraryDirs.add(new File(launcher.getLibrariesDir(), name.getFilePath()).getParentFile());
+                } catch (IndexOutOfBoundsException e) {
+                    log.log(Level.FINE, "Ignoring bad artifact name " + value, e);
+                }
+            }
+        }
+
+        private void findUnusedLibraries(File dir, Report report) throws InterruptedException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            boolean inUse = libraryDirs.contains(dir);
+            for (File file : files) {
+                checkInterrupted();
+
+                if (file.isDirectory()) {
+                    findUnusedLibraries(file, report);
+                } else if (!inUse && isOld(file)) {
+                    report.add(Kind.LIBRARY, file, file.length());
+                }
+            }
+        }
+
+        private void findUnusedChildren(File dir, Set<String> inUse, String suffix, Kind kind, Report report)
+                throws InterruptedException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            for (File file : files) {
+                checkInterrupted();
+
+                String name = file.getName();
+                if (suffix.isEmpty() ? !file.isDirectory() : !name.endsWith(suffix)) {
+                    continue;
+                }
+
+                String id = name.substring(0, name.length() - suffix.length());
+                if (!inUse.contains(id) && isOld(file)) {
+                    report.add(kind, file, getSize(file));
+                }
+            }
+        }
+
+        private void findUnusedObjects(File dir, Set<String> inUse, Kind kind, Report report)
+                throws InterruptedException {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            for (File file : files) {
+                checkInterrupted();
+
+                if (file.isDirectory()) {
+                    findUnusedObjects(file, inUse, kind, report);
+                } else if (!inUse.contains(file.getName().toLowerCase()) && isOld(file)) {
+                    report.add(kind, file, file.length());
+                }
+            }
+        }
+
+        private boolean isOld(File file) {
+            return file.lastModified() < cutoff;
+        }
+
+        private long getSize(File file) {
+            if (file.isDirectory()) {
+                long size = 0;
+                File[] files = file.listFiles();
+                if (files != null) {
+                    for (File child : files) {
+                        size += getSize(child);
+                    }
+                }
+                return size;
+            } else {
+                return file.length();
+            }
+        }
+
+        private boolean removeEmptyDirs(File dir, boolean remove) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return false;
+            }
+
+            boolean empty = true;
+            for (File file : files) {
+                if (!file.isDirectory() || !removeEmptyDirs(file, true)) {
+                    empty = false;
+                }
+            }
+
+            return empty && remove && dir.delete();
+        }
+
+        @Override
+        public double getProgress() {
+            return -1;
+        }
+
+        @Override
+        public String getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * The files that a collection found, and removed if it wasn't a dry run.
+     */
+    @Data
+    public static class Report {
+        private boolean dryRun;
+        private final List<File> files = new ArrayList<File>();
+        private final List<File> failures = new ArrayList<File>();
+        private long size;
+        private int libraries;
+        private int versions;
+        private int assets;
+        private int objects;
+
+        private void add(Kind kind, File file, long size) {
+            files.add(file);
+            this.size += size;
+
+            switch (kind) {
+                case LIBRARY: libraries++; break;
+                case VERSION: versions++; break;
+                case ASSET: assets++; break;
+                case OBJECT: objects++; break;
+            }
+        }
+    }
+
+    private enum Kind {
+        LIBRARY, VERSION, ASSET, OBJECT
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.update;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
+import com.skcraft.concurrency.Callback;
+import com.skcraft.launcher.Configuration;
+import com.skcraft.launcher.Instance;
+import com.skcraft.launcher.InstanceList;
+import com.skcraft.launcher.Launcher;
+import com.skcraft.launcher.ObjectsRoot;
+import com.skcraft.launcher.install.FeatureCache;
+import com.skcraft.launcher.install.FileStateIndex;
+import com.skcraft.launcher.install.HttpDownloader;
+import com.skcraft.launcher.model.loader.LoaderManifest;
+import com.skcraft.launcher.model.minecraft.Library;
+import com.skcraft.launcher.model.modpack.Feature;
+import com.skcraft.launcher.model.modpack.FileInstall;
+import com.skcraft.launcher.model.modpack.Manifest;
+import com.skcraft.launcher.model.modpack.ManifestEntry;
+import com.skcraft.launcher.persistence.Persistence;
+import com.skcraft.launcher.util.Environment;
+import com.skcraft.launcher.util.HttpRequest;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
+import static com.skcraft.launcher.LauncherUtils.concat;
+
+/**
+ * Downloads the files needed by pending modpack updates in the background,
+ * at low priority and limited speed, while the launcher is otherwise idle.
+ * </p>
+ * Files are only ever staged where the real update looks for them first:
+ * modpack files go to the shared object store and libraries go to the
+ * libraries directory, both of which are checked against their hashes. When
+ * the user then launches the instance, the update finds everything already
+ * on disk and only has to install it.
+ */
+@Log
+public class UpdatePrefetcher {
+
+    private static final int THREAD_COUNT = 2;
+    private static final long FILE_SIZE_ESTIMATE = 10 * 1024;
+    private static final long LIBRARY_SIZE_ESTIMATE = 3 * 1024 * 1024;
+
+    private final Launcher launcher;
+    private final Environment environment = Environment.getInstance();
+    private Future<?> running;
+
+    /**
+     * Create a new prefetcher.
+     *
+     * @param launcher the launcher
+     */
+    public UpdatePrefetcher(@NonNull Launcher launcher) {
+        this.launcher = launcher;
+    }
+
+    /**
+     * Start prefetching the pending updates of installed instances, most
+     * recently played first, replacing any prefetch that is in progress.
+     */
+    public synchronized void schedule() {
+        cancel();
+
+        if (!launcher.getConfig().isPrefetchUpdates()) {
+            return;
+        }
+
+        final List<Instance> pending = new ArrayList<Instance>();
+        InstanceList instances = launcher.getInstances();
+        synchronized (instances) {
+            for (Instance instance : instances.getInstances()) {
+                if (instance.isLocal() && instance.isInstalled() && instance.isUpdatePending()
+                        && instance.getManifestURL() != null) {
+                    pending.add(instance);
+                }
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(pending);
+        running = launcher.getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(pending);
+            }
+        });
+    }
+
+    /**
+     * Stop the prefetch in progress, such as when an update is about to
+     * start. Files that were already staged are kept.
+     */
+    public synchronized void cancel() {
+        if (running != null) {
+            running.cancel(true);
+            running = null;
+        }
+    }
+
+    private void prefetch(List<Instance> instances) {
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+
+        try {
+            for (Instance instance : instances) {
+                try {
+                    prefetch(instance);
+                } catch (InterruptedException e) {
+                    log.info("Prefetching of updates was stopped");
+                    return;
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to prefetch the update for " + instance.getTitle(), e);
+                }
+            }
+        } finally {
+            thread.setPriority(priority);
+        }
+    }
+
+    private void prefetch(Instance instance) throws IOException, InterruptedException {
+        log.info("Prefetching the update for " + instance.getTitle() + "...");
+
+        // Goes through the HTTP cache, so the real update only has to revalidate it
+        Manifest manifest = HttpRequest
+                .get(instance.getManifestURL())
+                .useCache(launcher.getHttpCache())
+                .execute()
+                .expectResponseCode(200)
+                .returnJson(Manifest.class);
+
+        if (manifest.getMinimumVersion() > Launcher.PROTOCOL_VERSION) {
+            return;
+        }
+
+        if (manifest.getBaseUrl() == null) {
+            manifest.setBaseUrl(instance.getManifestURL());
+        }
+
+        selectFeatures(instance, manifest);
+
+        Configuration config = launcher.getConfig();
+        HttpDownloader downloader = new HttpDownloader(launcher.getPrefetchDir());
+        downloader.setThreadCount(THREAD_COUNT);
+        downloader.setThreadPriority(Thread.MIN_PRIORITY);
+        downloader.setSegmentThreshold(Long.MAX_VALUE);
+        if (config.getPrefetchSpeedLimit() > 0) {
+            downloader.setRateLimiter(RateLimiter.create(config.getPrefetchSpeedLimit() * 1024.0));
+        }
+
+        final Map<File, Destination> destinations = new HashMap<File, Destination>();
+        queueObjects(instance, manifest, downloader, destinations);
+        queueLibraries(manifest, downloader, destinations);
+
+        if (destinations.isEmpty()) {
+            log.info("Nothing to prefetch for " + instance.getTitle());
+            return;
+        }
+
+        downloader.setCompletionListener(new Callback<File>() {
+            @Override
+            public void handle(File value) {
+                stage(value, destinations.get(value));
+            }
+        });
+
+        // Files left over from an earlier prefetch that didn't get staged
+        for (Map.Entry<File, Destination> entry : destinations.entrySet()) {
+            if (entry.getKey().exists()) {
+                stage(entry.getKey(), entry.getValue());
+            }
+        }
+
+        try {
+            downloader.execute();
+        } finally {
+            launcher.getObjects().save();
+        }
+
+        log.info("Prefetched " + destinations.size() + " file(s) for " + instance.getTitle());
+    }
+
+    /**
+     * Select features the way the user last did for the instance, so that
+     * the files of features that they turned off aren't fetched.
+     */
+    private static void selectFeatures(Instance instance, Manifest manifest) {
+        File featuresPath = new File(instance.getDir(), "features.json");
+        FeatureCache featuresCache = Persistence.read(featuresPath, FeatureCache.class);
+
+        for (Feature feature : manifest.getFeatures()) {
+            Boolean last = featuresCache.getSelected().get(feature.getName());
+            if (last != null) {
+                feature.setSelected(last);
+            }
+        }
+    }
+
+    private void queueObjects(Instance instance, Manifest manifest, HttpDownloader downloader,
+                              Map<File, Destination> destinations) throws IOException, InterruptedException {
+        ObjectsRoot objects = launcher.getObjects();
+        File contentDir = instance.getContentDir();
+        FileStateIndex fileStates = Persistence.read(new File(instance.getDir(), "file_states.json"), FileStateIndex.class);
+        fileStates.setBaseDir(contentDir);
+        Set<String> queued = new HashSet<String>();
+
+        for (ManifestEntry entry : manifest.getTasks()) {
+            checkInterrupted();
+
+            if (!(entry instanceof FileInstall)) {
+                continue;
+            }
+
+            FileInstall file = (FileInstall) entry;
+            String hash = file.getHash();
+            if (hash == null || file.isUserFile() || (file.getWhen() != null && !file.getWhen().matches())) {
+                continue;
+            }
+
+            if (!queued.add(hash.toLowerCase()) || objects.getObjectPath(hash).exists()) {
+                continue;
+            }
+
+            // Already installed and unchanged, so the update won't need it
+            if (hash.equalsIgnoreCase(fileStates.getHash(new File(contentDir, file.getTargetPath())))) {
+                continue;
+            }
+
+            long size = file.getSize() > 0 ? file.getSize() : FILE_SIZE_ESTIMATE;
+            URL url = concat(manifest.getObjectsUrl(), file.getLocation());
+            File tempFile = downloader.download(url, file.getImpliedVersion(), size, file.getTo(), hash);
+            destinations.put(tempFile, new Destination(null, hash));
+        }
+    }
+
+    private void queueLibraries(Manifest manifest, HttpDownloader downloader,
+                                Map<File, Destination> destinations) throws InterruptedException {
+        if (manifest.getVersionManifest() == null) {
+            return;
+        }
+
+        List<URL> sources = new ArrayList<URL>();
+        URL librariesUrl = manifest.getLibrariesUrl();
+        if (librariesUrl != null) {
+            sources.add(librariesUrl);
+        }
+        sources.add(launcher.propUrl("librariesSource"));
+
+        Iterable<Library> allLibraries = manifest.getVersionManifest().getLibraries();
+        for (LoaderManifest loader : manifest.getLoaders().values()) {
+            allLibraries = Iterables.concat(allLibraries, loader.getLibraries());
+        }
+
+        for (Library library : allLibraries) {
+            checkInterrupted();
+
+            if (library.isGenerated() || !library.matches(environment)) {
+                continue;
+            }
+
+            Library.Artifact artifact = library.getArtifact(environment);
+            File targetFile = new File(launcher.getLibrariesDir(), artifact.getPath());
+
+            // Only verified files are put straight into the libraries directory
+            if (artifact.getSha1() == null || targetFile.exists()) {
+                continue;
+            }
+
+            List<URL> urls = new ArrayList<URL>();
+            for (URL sourceUrl : sources) {
+                try {
+                    urls.add(concat(sourceUrl, artifact.getPath()));
+                } catch (MalformedURLException e) {
+                    log.log(Level.WARNING, "Bad source URL for library: " + sourceUrl);
+                }
+            }
+
+            if (!urls.isEmpty()) {
+                long size = artifact.getSize() > 0 ? artifact.getSize() : LIBRARY_SIZE_ESTIMATE;
+                File tempFile = downloader.download(urls, "", size, library.getName().toString(), artifact.getSha1());
+                destinations.put(tempFile, new Destination(targetFile, null));
+            }
+        }
+    }
+
+    private void stage(File file, Destination destination) {
+        if (destination == null) {
+            return;
+        }
+
+        try {
+            if (destination.hash != null) {
+                launcher.getObjects().add(file, destination.hash);
+            } else if (destination.file.exists()) {
+                // The update got to it first
+                file.delete();
+            } else {
+                destination.file.getParentFile().mkdirs();
+                if (!file.renameTo(destination.file)) {
+                    throw new IOException("Failed to move " + file.getAbsolutePath() + " to " +
+                            destination.file.getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to stage the prefetched file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static class Destination {
+        private final File file;
+        private final String hash;
+
+        private Destination(File file, String hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+    }
+
+}
@@ -14,6 +14,7 @@ import com.skcraft.launcher.Instance;
 import com.skcraft.launcher.Launcher;
 import com.skcraft.launcher.LauncherException;
 import com.skcraft.launcher.install.Installer;
+import com.skcraft.launcher.launch.LaunchTrace;
 import com.skcraft.launcher.model.minecraft.ReleaseList;
 import com.skcraft.launcher.model.minecraft.Version;
 import com.skcraft.launcher.model.minecraft.VersionManifest;
@@ -47,6 +48,8 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
 
     @Getter @Setter
     private boolean online;
+    @Getter @Setter
+    private LaunchTrace trace = LaunchTrace.disabled();
 
     private List<URL> librarySources = new ArrayList<URL>();
     private List<URL> assetsSources = new ArrayList<URL>();
@@ -125,19 +128,19 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         return version;
     }
 
-    private static VersionManifest fetchVersionManifest(URL url, Manifest manifest) throws IOException, InterruptedException {
+    private VersionManifest fetchVersionManifest(URL url, Manifest manifest) throws IOException, InterruptedException {
         ReleaseList releases = HttpRequest.get(url)
+                .useCache(launcher.getHttpCache())
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .asJson(ReleaseList.class);
+                .returnJson(ReleaseList.class);
 
         Version relVersion = releases.find(manifest.getGameVersion());
         return HttpRequest.get(url(relVersion.getUrl()))
+                .useCache(launcher.getHttpCache())
                 .execute()
                 .expectResponseCode(200)
-                .returnContent()
-                .asJson(VersionManifest.class);
+                .returnJson(VersionManifest.class);
     }
 
     /**
@@ -156,7 +159,10 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         // Read manifest
         log.info("Reading package manifest...");
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingManifest"));
-        Manifest manifest = installPackage(installer, instance);
+        Manifest manifest;
+        try (LaunchTrace.Span span = trace.begin("Read package manifest")) {
+            manifest = installPackage(installer, instance);
+        }
 
         // Update instance from manifest
         manifest.update(instance);
@@ -164,7 +170,10 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         // Read version manifest
         log.info("Reading version manifest...");
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.readingVersion"));
-        VersionManifest version = readVersionManifest(manifest);
+        VersionManifest version;
+        try (LaunchTrace.Span span = trace.begin("Read version manifest")) {
+            version = readVersionManifest(manifest);
+        }
 
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.buildingDownloadList"));
 
@@ -173,7 +182,9 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         VersionManifest.Artifact clientJar = version.getDownloads().get("client");
         URL jarSource = url(clientJar.getUrl());
         log.info("JAR at " + jarPath.getAbsolutePath() + ", fetched from " + jarSource);
-        installJar(installer, clientJar, jarPath, jarSource);
+        try (LaunchTrace.Span span = trace.begin("Collect game jar")) {
+            installJar(installer, clientJar, jarPath, jarSource);
+        }
 
         // Download libraries
         log.info("Enumerating libraries to download...");
@@ -185,25 +196,32 @@ public class Updater extends BaseUpdater implements Callable<Instance>, Progress
         }
 
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.collectingLibraries"));
-        installLibraries(installer, manifest, launcher.getLibrariesDir(), librarySources);
+        try (LaunchTrace.Span span = trace.begin("Collect libraries")) {
+            installLibraries(installer, manifest, launcher.getLibrariesDir(), librarySources);
+        }
 
         // Download assets
         log.info("Enumerating assets to download...");
         progress = new DefaultProgress(-1, SharedLocale.tr("instanceUpdater.collectingAssets"));
-        installAssets(installer, version, url(version.getAssetIndex().getUrl()), assetsSources);
+        try (LaunchTrace.Span span = trace.begin("Collect assets")) {
+            installAssets(installer, version, url(version.getAssetIndex().getUrl()), assetsSources);
+        }
 
-        log.info("Executing download phase...");
-        progress = ProgressFilter.between(installer.getDownloader(), 0, 0.98);
-        installer.download();
+        log.info("Executing download and install phases...");
+        progress = installer;
+        try (LaunchTrace.Span span = trace.begin("Download and install")) {
+            installer.downloadAndExecute(launcher);
+        }
 
-        log.info("Executing install phase...");
         progress = ProgressFilter.between(installer, 0.98, 1);
-        installer.execute(launcher);
-
-        installer.executeLate(launcher);
+        try (LaunchTrace.Span span = trace.begin("Late install")) {
+            installer.executeLate(launcher);
+        }
 
         log.info("Completing...");
-        complete();
+        try (LaunchTrace.Span span = trace.begin("Complete update")) {
+            complete();
+        }
 
         // Update the instance's information
         log.info("Writing instance information...");
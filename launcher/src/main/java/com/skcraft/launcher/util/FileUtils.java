@@ -7,7 +7,6 @@ import com.google.common.io.Files;
 import com.skcraft.launcher.model.modpack.DownloadableFile;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -33,11 +32,6 @@ public class FileUtils {
 	}
 
 	public static String getShaHash(File file) throws IOException {
-		FileInputStream stream = new FileInputStream(file);
-		byte[] input = ByteStreams.toByteArray(stream);
-		String res = Hashing.sha1().hashBytes(input).toString();
-
-		stream.close();
-		return res;
+		return Files.hash(file, Hashing.sha1()).toString();
 	}
 }
@@ -0,0 +1,160 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.skcraft.launcher.persistence.Persistence;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.logging.Level;
+
+/**
+ * Stores small HTTP responses on disk along with their <code>ETag</code>
+ * and <code>Last-Modified</code> validators, so that later requests for
+ * the same URL can be made conditional and a <code>304 Not Modified</code>
+ * answer can be served from disk.
+ *
+ * @see HttpRequest#useCache(HttpCache)
+ */
+@Log
+public class HttpCache {
+
+    @Getter
+    private final File dir;
+
+    /**
+     * Create a new cache.
+     *
+     * @param dir the directory to store responses in
+     */
+    public HttpCache(@NonNull File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the cached entry for a URL.
+     *
+     * @param url the URL
+     * @return the entry, or null if nothing usable is cached
+     */
+    public synchronized Entry get(@NonNull URL url) {
+        String key = getKey(url);
+        File metaFile = new File(dir, key + ".json");
+        File dataFile = new File(dir, key + ".dat");
+
+        if (!metaFile.exists() || !dataFile.exists()) {
+            return null;
+        }
+
+        Entry entry = Persistence.read(metaFile, Entry.class, true);
+        if (entry == null || !url.toString().equals(entry.getUrl())
+                || (entry.getEtag() == null && entry.getLastModified() == null)) {
+            return null;
+        }
+
+        entry.setFile(dataFile);
+        return entry;
+    }
+
+    /**
+     * Store a response. Responses without any validators are removed from
+     * the cache instead, because they could never be revalidated.
+     *
+     * @param url the URL
+     * @param etag the <code>ETag</code> header, or null
+     * @param lastModified the <code>Last-Modified</code> header, or null
+     * @param data the response body
+     */
+    public void put(@NonNull URL url, String etag, String lastModified, @NonNull byte[] data) {
+        File tempFile;
+        try {
+            tempFile = createTempFile(url);
+            Files.write(data, tempFile);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to cache response for " + url, e);
+            return;
+        }
+
+        put(url, etag, lastModified, tempFile);
+    }
+
+    /**
+     * Store a response that was written to a file returned by
+     * {@link #createTempFile(URL)}, moving the file into the cache.
+     * Responses without any validators are removed from the cache instead,
+     * because they could never be revalidated.
+     *
+     * @param url the URL
+     * @param etag the <code>ETag</code> header, or null
+     * @param lastModified the <code>Last-Modified</code> header, or null
+     * @param tempFile the file with the response body
+     */
+    public synchronized void put(@NonNull URL url, String etag, String lastModified, @NonNull File tempFile) {
+        String key = getKey(url);
+        File metaFile = new File(dir, key + ".json");
+        File dataFile = new File(dir, key + ".dat");
+
+        if (etag == null && lastModified == null) {
+            tempFile.delete();
+            metaFile.delete();
+            dataFile.delete();
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.setUrl(url.toString());
+        entry.setEtag(etag);
+        entry.setLastModified(lastModified);
+
+        try {
+            metaFile.delete();
+            dataFile.delete();
+            Files.move(tempFile, dataFile);
+            Persistence.write(metaFile, entry);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to cache response for " + url, e);
+            tempFile.delete();
+            metaFile.delete();
+        }
+    }
+
+    /**
+     * Create a temporary file in the cache directory that a response for
+     * the given URL can be written to before it is stored.
+     *
+     * @param url the URL
+     * @return the temporary file
+     * @throws IOException on I/O error
+     */
+    public File createTempFile(@NonNull URL url) throws IOException {
+        dir.mkdirs();
+        return File.createTempFile(getKey(url), ".dat.tmp", dir);
+    }
+
+    private static String getKey(URL url) {
+        return Hashing.sha1().hashString(url.toString(), Charsets.UTF_8).toString();
+    }
+
+    @Data
+    public static class Entry {
+        private String url;
+        private String etag;
+        private String lastModified;
+        @JsonIgnore
+        private File file;
+    }
+
+}
@@ -8,11 +8,18 @@ package com.skcraft.launcher.util;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import com.skcraft.concurrency.Callback;
 import com.skcraft.concurrency.ProgressObservable;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.java.Log;
 import okhttp3.*;
+import org.apache.commons.io.IOUtils;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -20,10 +27,13 @@ import javax.xml.bind.Unmarshaller;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.lang.reflect.Type;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
@@ -33,6 +43,15 @@ import static org.apache.commons.io.IOUtils.closeQuietly;
 public class HttpRequest implements Closeable, ProgressObservable {
 
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final HashFunction hf = Hashing.sha1();
+
+    /**
+     * The upper bound for concurrent downloads per host, which is also how
+     * many idle connections are kept open for reuse. Requests run on the
+     * calling thread, so the number of threads making them is the only
+     * other limit.
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 32;
     
     // Singleton OkHttpClient to enable Connection Pooling
     private static final OkHttpClient CLIENT = new OkHttpClient.Builder()
@@ -40,9 +59,13 @@ public class HttpRequest implements Closeable, ProgressObservable {
             .readTimeout(30, TimeUnit.SECONDS)
             .followRedirects(true)
             .followSslRedirects(true)
+            .connectionPool(new ConnectionPool(MAX_CONNECTIONS_PER_HOST, 5, TimeUnit.MINUTES))
             .build();
 
-    private final ObjectMapper mapper = new ObjectMapper();
+    // Mappers are expensive to set up, so share one and keep a reader for every type read
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<Type, ObjectReader>();
+
     private final Request.Builder builder = new Request.Builder();
     private final String method;
     
@@ -53,10 +76,26 @@ public class HttpRequest implements Closeable, ProgressObservable {
     private InputStream inputStream;
     private RequestBody requestBody;
     private long contentLength = -1;
+    @Getter
     private long readBytes = 0;
     
     private PartialDownloadInfo resumeInfo;
 
+    /**
+     * The SHA-1 hash of the file written by {@link #saveContent(File)},
+     * including any bytes that were already present for a resumed download.
+     */
+    @Getter
+    private String contentHash;
+
+    private long checkpointInterval;
+    private Callback<Long> checkpointListener;
+    private RateLimiter rateLimiter;
+
+    private HttpCache cache;
+    private HttpCache.Entry cacheEntry;
+    private boolean fromCache;
+
     private HttpRequest(String method, URL url) {
         this.method = method;
         this.url = url;
@@ -98,9 +137,27 @@ public class HttpRequest implements Closeable, ProgressObservable {
             builder.header("Range", "bytes=" + resumeInfo.currentLength + "-");
         }
 
+        if (cache != null && "GET".equalsIgnoreCase(method)) {
+            cacheEntry = cache.get(url);
+            if (cacheEntry != null) {
+                if (cacheEntry.getEtag() != null) {
+                    builder.header("If-None-Match", cacheEntry.getEtag());
+                }
+                if (cacheEntry.getLastModified() != null) {
+                    builder.header("If-Modified-Since", cacheEntry.getLastModified());
+                }
+            }
+        }
+
         response = CLIENT.newCall(builder.build()).execute();
-        
-        if (response.body() != null) {
+
+        if (cacheEntry != null && response.code() == 304) {
+            // Nothing changed, so answer with what we have on disk as if it was a fresh 200
+            response.close();
+            fromCache = true;
+            contentLength = cacheEntry.getFile().length();
+            inputStream = new FileInputStream(cacheEntry.getFile());
+        } else if (response.body() != null) {
             contentLength = response.body().contentLength();
             inputStream = response.body().byteStream();
         } else {
@@ -157,11 +214,16 @@ public class HttpRequest implements Closeable, ProgressObservable {
 
     public int getResponseCode() {
         if (response == null) throw new IllegalArgumentException("No connection has been made");
-        return response.code();
+        return fromCache ? 200 : response.code();
+    }
+
+    public String getResponseHeader(String name) {
+        if (response == null) throw new IllegalArgumentException("No connection has been made");
+        return response.header(name);
     }
 
     public boolean isSuccessCode() {
-        return response != null && response.isSuccessful();
+        return response != null && (fromCache || response.isSuccessful());
     }
 
     public boolean isConnected() {
@@ -174,8 +236,158 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
 
         try {
-            return new BufferedResponse(response.body().bytes());
+            if (fromCache) {
+                return new BufferedResponse(IOUtils.toByteArray(inputStream));
+            }
+
+            byte[] data = response.body().bytes();
+            if (cache != null && response.code() == 200) {
+                cache.put(url, response.header("ETag"), response.header("Last-Modified"), data);
+            }
+            return new BufferedResponse(data);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Parse the response body as JSON while it is being read, without
+     * holding the whole body in memory first.
+     *
+     * @param cls the class to read
+     * @return the parsed object
+     * @throws IOException on I/O error or if the JSON can't be parsed
+     * @throws InterruptedException on interruption
+     * @see #returnJson(ObjectReader, File)
+     */
+    public <T> T returnJson(Class<T> cls) throws IOException, InterruptedException {
+        return returnJson(getReader(cls), null);
+    }
+
+    /**
+     * Parse the response body as JSON while it is being read, and also
+     * save a copy of the body to the given file.
+     *
+     * @param cls the class to read
+     * @param file the file to save the body to, or null
+     * @return the parsed object
+     * @throws IOException on I/O error or if the JSON can't be parsed
+     * @throws InterruptedException on interruption
+     * @see #returnJson(ObjectReader, File)
+     */
+    public <T> T returnJson(Class<T> cls, File file) throws IOException, InterruptedException {
+        return returnJson(getReader(cls), file);
+    }
+
+    /**
+     * Parse the response body as JSON while it is being read.
+     *
+     * @param type the type to read
+     * @return the parsed object
+     * @throws IOException on I/O error or if the JSON can't be parsed
+     * @throws InterruptedException on interruption
+     * @see #returnJson(ObjectReader, File)
+     */
+    public <T> T returnJson(TypeReference<T> type) throws IOException, InterruptedException {
+        return returnJson(getReader(type), null);
+    }
+
+    /**
+     * Parse the response body as JSON while it is being read from the
+     * network, which is the streaming counterpart of
+     * <code>returnContent().saveContent(file).asJson(type)</code>.
+     *
+     * @param reader the reader to parse with
+     * @param file the file to save the body to, or null
+     * @return the parsed object
+     * @throws IOException on I/O error or if the JSON can't be parsed
+     * @throws InterruptedException on interruption
+     * @see #returnContent(ContentReader, File)
+     */
+    public <T> T returnJson(final ObjectReader reader, File file) throws IOException, InterruptedException {
+        return returnContent(new ContentReader<T>() {
+            @Override
+            public T read(InputStream in) throws IOException {
+                return reader.readValue(in);
+            }
+        }, file);
+    }
+
+    /**
+     * Read the response body with the given reader while it is being read
+     * from the network, without holding the whole body in memory first.
+     * </p>
+     * The body is copied to the given file and to the cache (if this
+     * request {@link #useCache(HttpCache) uses one}) as it passes through
+     * the reader. Both copies are written to temporary files first and
+     * only put in place once the whole body has been read successfully.
+     *
+     * @param reader the reader
+     * @param file the file to save the body to, or null
+     * @return the object returned by the reader
+     * @throws IOException on I/O error or if the reader fails
+     * @throws InterruptedException on interruption
+     */
+    public <T> T returnContent(ContentReader<T> reader, File file) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        boolean caching = cache != null && !fromCache && response.code() == 200;
+        File cacheFile = caching ? cache.createTempFile(url) : null;
+        File tempFile = null;
+        OutputStream cacheOut = null;
+        OutputStream fileOut = null;
+
+        try {
+            if (cacheFile != null) {
+                cacheOut = new BufferedOutputStream(new FileOutputStream(cacheFile));
+            }
+            if (file != null) {
+                if (file.getParentFile() != null) {
+                    file.getParentFile().mkdirs();
+                }
+                tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+                fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+            }
+
+            CopyingInputStream in = new CopyingInputStream(inputStream, cacheOut, fileOut);
+            T value = reader.read(in);
+
+            // The reader can stop before trailing whitespace, but the copies need all of it
+            in.drain();
+            checkInterrupted();
+
+            if (contentLength >= 0 && contentLength != readBytes) {
+                throw new IOException(String.format("Connection closed with %d bytes transferred, expected %d",
+                        readBytes, contentLength));
+            }
+
+            if (fileOut != null) {
+                fileOut.close();
+                fileOut = null;
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Failed to move " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+                }
+            }
+
+            if (cacheOut != null) {
+                cacheOut.close();
+                cacheOut = null;
+                cache.put(url, response.header("ETag"), response.header("Last-Modified"), cacheFile);
+            }
+
+            return value;
         } finally {
+            closeQuietly(cacheOut);
+            closeQuietly(fileOut);
+            if (cacheFile != null) {
+                cacheFile.delete();
+            }
+            if (tempFile != null) {
+                tempFile.delete();
+            }
             close();
         }
     }
@@ -184,28 +396,65 @@ public class HttpRequest implements Closeable, ProgressObservable {
         FileOutputStream fos = null;
         BufferedOutputStream bos = null;
         boolean shouldAppend = resumeInfo != null && getResponseCode() == 206;
+        Hasher hasher = hf.newHasher();
 
         try {
             file.getParentFile().mkdirs();
+
+            if (shouldAppend) {
+                // The range we asked for has to line up with what is on disk
+                if (file.length() != resumeInfo.getCurrentLength()) {
+                    throw new IOException(String.format("Can't resume %s: expected %d bytes on disk, found %d",
+                            file, resumeInfo.getCurrentLength(), file.length()));
+                }
+                hashFile(file, hasher);
+            }
+
             fos = new FileOutputStream(file, shouldAppend);
             bos = new BufferedOutputStream(fos);
 
-            saveContent(bos);
+            OutputStream out = bos;
+            if (checkpointListener != null) {
+                out = new CheckpointOutputStream(bos, fos, shouldAppend ? resumeInfo.getCurrentLength() : 0);
+            }
+
+            saveContent(out, hasher);
         } finally {
             closeQuietly(bos);
             closeQuietly(fos);
         }
 
+        contentHash = hasher.hash().toString();
         return this;
     }
 
     public HttpRequest saveContent(OutputStream out) throws IOException, InterruptedException {
+        return saveContent(out, null);
+    }
+
+    /**
+     * Write the response body to the given stream, feeding it to the hasher
+     * as it is written.
+     *
+     * @param out the output stream
+     * @param hasher the hasher, or null
+     * @return this object
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public HttpRequest saveContent(OutputStream out, Hasher hasher) throws IOException, InterruptedException {
         try {
             byte[] data = new byte[READ_BUFFER_SIZE];
             int len = 0;
             while ((len = inputStream.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
                 out.write(data, 0, len);
+                if (hasher != null) {
+                    hasher.putBytes(data, 0, len);
+                }
                 readBytes += len;
+                if (rateLimiter != null && len > 0) {
+                    rateLimiter.acquire(len);
+                }
                 checkInterrupted();
             }
 
@@ -220,10 +469,28 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    private static void hashFile(File file, Hasher hasher) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(data)) >= 0) {
+                hasher.putBytes(data, 0, len);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
     public Optional<PartialDownloadInfo> canRetryPartial() {
         if (response == null) return Optional.empty();
 
         if ("bytes".equals(response.header("Accept-Ranges"))) {
+            // A resumed request only returned the rest of the file, so count what was there before it
+            if (resumeInfo != null && getResponseCode() == 206) {
+                return Optional.of(new PartialDownloadInfo(resumeInfo.getExpectedLength(),
+                        resumeInfo.getCurrentLength() + readBytes));
+            }
             return Optional.of(new PartialDownloadInfo(contentLength, readBytes));
         }
 
@@ -235,6 +502,59 @@ public class HttpRequest implements Closeable, ProgressObservable {
         return this;
     }
 
+    /**
+     * Have {@link #saveContent(File)} sync the file to disk every so often
+     * while it is being written, and report how many bytes of it are
+     * safely stored each time.
+     *
+     * @param interval the number of bytes between each sync
+     * @param listener called with the length of the file on disk after each sync
+     * @return this object
+     */
+    public HttpRequest setCheckpointListener(long interval, Callback<Long> listener) {
+        this.checkpointInterval = interval;
+        this.checkpointListener = listener;
+        return this;
+    }
+
+    /**
+     * Limit how fast the response body is read by {@link #saveContent(File)},
+     * taking one permit from the given limiter for every byte. A limiter
+     * can be shared between requests to limit all of them together.
+     *
+     * @param rateLimiter the limiter, or null to read as fast as possible
+     * @return this object
+     */
+    public HttpRequest setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Make this request conditional on what is stored in the given cache,
+     * and store the response there when it is read with
+     * {@link #returnContent()}. If the server answers that the content has
+     * not been modified, the stored copy is returned instead, and the
+     * request otherwise behaves as if it got a <code>200 OK</code>.
+     *
+     * @param cache the cache, or null to not use one
+     * @return this object
+     */
+    public HttpRequest useCache(HttpCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Get whether the content of this request is being served from the
+     * cache because the server said it had not changed.
+     *
+     * @return true if served from the cache
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
     public boolean isResumedRequest() {
         return resumeInfo != null;
     }
@@ -263,6 +583,36 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Get the shared JSON reader for a class.
+     *
+     * @param cls the class
+     * @return the reader
+     */
+    public static ObjectReader getReader(Class<?> cls) {
+        ObjectReader reader = readers.get(cls);
+        if (reader == null) {
+            reader = mapper.readerFor(cls);
+            readers.putIfAbsent(cls, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Get the shared JSON reader for a type.
+     *
+     * @param type the type
+     * @return the reader
+     */
+    public static <T> ObjectReader getReader(TypeReference<T> type) {
+        ObjectReader reader = readers.get(type.getType());
+        if (reader == null) {
+            reader = mapper.readerFor(type);
+            readers.putIfAbsent(type.getType(), reader);
+        }
+        return reader;
+    }
+
     public static HttpRequest get(URL url) {
         return new HttpRequest("GET", url);
     }
@@ -279,6 +629,23 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Reads a response body from a stream.
+     *
+     * @param <T> the type of the result
+     */
+    public interface ContentReader<T> {
+        /**
+         * Read the body. The stream doesn't have to be read to the end,
+         * and closing it has no effect.
+         *
+         * @param in the stream
+         * @return the result
+         * @throws IOException on I/O error
+         */
+        T read(InputStream in) throws IOException;
+    }
+
     // Retained for compatibility with existing code
     public final static class Form {
         public final List<String> elements = new ArrayList<String>();
@@ -331,11 +698,11 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
 
         public <T> T asJson(Class<T> cls) throws IOException {
-            return mapper.readValue(asString("UTF-8"), cls);
+            return getReader(cls).readValue(data);
         }
 
         public <T> T asJson(TypeReference<T> type) throws IOException {
-            return mapper.readValue(asString("UTF-8"), type);
+            return getReader(type).readValue(data);
         }
 
         @SuppressWarnings("unchecked")
@@ -360,6 +727,92 @@ public class HttpRequest implements Closeable, ProgressObservable {
         }
     }
 
+    /**
+     * Copies everything that is read to the given streams and counts it in
+     * {@link #readBytes}. Closing it does nothing, so the parser can't close
+     * the connection before the rest of the body has been drained.
+     */
+    private class CopyingInputStream extends FilterInputStream {
+        private final OutputStream[] copies;
+
+        private CopyingInputStream(InputStream in, OutputStream... copies) {
+            super(in);
+            this.copies = copies;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                for (OutputStream copy : copies) {
+                    if (copy != null) {
+                        copy.write(b, off, read);
+                    }
+                }
+                readBytes += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, READ_BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void drain() throws IOException {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+            }
+        }
+    }
+
+    /**
+     * Syncs the file every {@link #checkpointInterval} bytes and reports
+     * the synced length to the {@link #checkpointListener}.
+     */
+    private class CheckpointOutputStream extends FilterOutputStream {
+        private final FileOutputStream fos;
+        private long length;
+        private long lastCheckpoint;
+
+        private CheckpointOutputStream(OutputStream out, FileOutputStream fos, long offset) {
+            super(out);
+            this.fos = fos;
+            this.length = offset;
+            this.lastCheckpoint = offset;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            length += len;
+
+            if (length - lastCheckpoint >= checkpointInterval) {
+                out.flush();
+                fos.getFD().sync();
+                lastCheckpoint = length;
+                checkpointListener.handle(length);
+            }
+        }
+    }
+
     @Data
     public static class PartialDownloadInfo {
         private final long expectedLength;
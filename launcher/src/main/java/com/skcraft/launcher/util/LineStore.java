@@ -0,0 +1,190 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Stores lines of text compactly, as UTF-8 one after another in a single
+ * array, along with where each line starts and a style number for each
+ * line. Once the limit on the number of lines is reached, the oldest lines
+ * are dropped.
+ * </p>
+ * This class is not thread safe.
+ */
+public class LineStore {
+
+    private static final int INITIAL_LINES = 1024;
+    private static final int INITIAL_BYTES = 64 * 1024;
+
+    private final int maxLines;
+    private byte[] data = new byte[INITIAL_BYTES];
+    private int length;
+    private int[] starts = new int[INITIAL_LINES];
+    private byte[] styles = new byte[INITIAL_LINES];
+    private int first;
+    private int count;
+    private boolean open;
+
+    /**
+     * Create a new store.
+     *
+     * @param maxLines the maximum number of lines to keep
+     */
+    public LineStore(int maxLines) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("Maximum lines must be greater than 0");
+        }
+
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * Get the number of lines.
+     *
+     * @return the number of lines
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get a line, without its line separator.
+     *
+     * @param index the index of the line
+     * @return the line
+     */
+    public String get(int index) {
+        int i = toSlot(index);
+        int end = index + 1 < count ? starts[i + 1] : length;
+        return new String(data, starts[i], end - starts[i], Charsets.UTF_8);
+    }
+
+    /**
+     * Get the style number of a line.
+     *
+     * @param index the index of the line
+     * @return the style number
+     */
+    public int getStyle(int index) {
+        return styles[toSlot(index)];
+    }
+
+    /**
+     * Add text, splitting it into lines. If the text doesn't end with a
+     * line separator, the next text that is added continues the last line.
+     *
+     * @param text the text
+     * @param style the style number of any new lines, from 0 to 127
+     * @return the number of old lines that were dropped to make room
+     */
+    public int append(String text, int style) {
+        int dropped = 0;
+        int pos = 0;
+
+        while (pos < text.length()) {
+            int newLine = text.indexOf('\n', pos);
+            int end = newLine != -1 ? newLine : text.length();
+            int partEnd = end > pos && text.charAt(end - 1) == '\r' ? end - 1 : end;
+
+            if (!open) {
+                dropped += startLine(style);
+            }
+
+            byte[] bytes = text.substring(pos, partEnd).getBytes(Charsets.UTF_8);
+            ensureData(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+
+            open = newLine == -1;
+            pos = end + 1;
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Remove all lines.
+     */
+    public void clear() {
+        data = new byte[INITIAL_BYTES];
+        starts = new int[INITIAL_LINES];
+        styles = new byte[INITIAL_LINES];
+        length = 0;
+        first = 0;
+        count = 0;
+        open = false;
+    }
+
+    private int toSlot(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + count);
+        }
+        return first + index;
+    }
+
+    private int startLine(int style) {
+        int dropped = 0;
+        if (count == maxLines) {
+            first++;
+            count--;
+            dropped++;
+        }
+
+        if (first + count == starts.length) {
+            compact();
+            if (count >= starts.length * 3 / 4) {
+                int capacity = Math.min(starts.length * 2, maxLines + 1);
+                int[] newStarts = new int[capacity];
+                byte[] newStyles = new byte[capacity];
+                System.arraycopy(starts, 0, newStarts, 0, count);
+                System.arraycopy(styles, 0, newStyles, 0, count);
+                starts = newStarts;
+                styles = newStyles;
+            }
+        }
+
+        starts[first + count] = length;
+        styles[first + count] = (byte) style;
+        count++;
+        return dropped;
+    }
+
+    private void ensureData(int needed) {
+        if (length + needed <= data.length) {
+            return;
+        }
+
+        compact();
+        if (length + needed > data.length * 3 / 4) {
+            byte[] newData = new byte[Math.max(data.length * 2, length + needed)];
+            System.arraycopy(data, 0, newData, 0, length);
+            data = newData;
+        }
+    }
+
+    /**
+     * Move the remaining lines to the start of the arrays, reclaiming the
+     * space used by dropped lines.
+     */
+    private void compact() {
+        if (first == 0) {
+            return;
+        }
+
+        int base = count > 0 ? starts[first] : length;
+        System.arraycopy(data, base, data, 0, length - base);
+        length -= base;
+
+        for (int i = 0; i < count; i++) {
+            starts[i] = starts[first + i] - base;
+        }
+        System.arraycopy(styles, first, styles, 0, count);
+        first = 0;
+    }
+
+}
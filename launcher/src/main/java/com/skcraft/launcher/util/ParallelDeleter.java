@@ -0,0 +1,122 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.util;
+
+import com.skcraft.launcher.LauncherUtils;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+
+import static com.skcraft.launcher.LauncherUtils.checkInterrupted;
+
+/**
+ * Deletes many files at once, spread over several threads, since most of
+ * the time spent deleting a file is waiting on the file system.
+ */
+@Log
+public final class ParallelDeleter {
+
+    private static final int THREAD_COUNT = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int MIN_PER_THREAD = 16;
+
+    private ParallelDeleter() {
+    }
+
+    /**
+     * Delete the given files. Directories are deleted with their contents,
+     * and files that don't exist are skipped.
+     *
+     * @param files the files
+     * @return the files that could not be deleted
+     * @throws InterruptedException thrown on interruption
+     */
+    public static List<File> delete(@NonNull Collection<File> files) throws InterruptedException {
+        return delete(files, true);
+    }
+
+    /**
+     * Delete the given files with {@link File#delete()}, so a directory is
+     * only deleted if it is empty. Files that don't exist are skipped.
+     *
+     * @param files the files
+     * @return the files that could not be deleted
+     * @throws InterruptedException thrown on interruption
+     */
+    public static List<File> deleteFiles(@NonNull Collection<File> files) throws InterruptedException {
+        return delete(files, false);
+    }
+
+    private static List<File> delete(Collection<File> files, final boolean recursive) throws InterruptedException {
+        final List<File> failures = Collections.synchronizedList(new ArrayList<File>());
+        final List<File> list = new ArrayList<File>(files);
+        int threads = Math.min(THREAD_COUNT, list.size() / MIN_PER_THREAD);
+
+        if (threads <= 1) {
+            delete(list, recursive, failures);
+            return failures;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            int sliceSize = (list.size() + threads - 1) / threads;
+            for (int i = 0; i < list.size(); i += sliceSize) {
+                final List<File> slice = list.subList(i, Math.min(list.size(), i + sliceSize));
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        delete(slice, recursive, failures);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InterruptedException) {
+                        throw (InterruptedException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return failures;
+    }
+
+    private static void delete(List<File> files, boolean recursive, List<File> failures) throws InterruptedException {
+        for (File file : files) {
+            checkInterrupted();
+
+            if (!recursive) {
+                if (!file.delete() && file.exists()) {
+                    failures.add(file);
+                }
+            } else if (file.isDirectory()) {
+                try {
+                    LauncherUtils.interruptibleDelete(file, failures);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to delete " + file.getAbsolutePath(), e);
+                    failures.add(file);
+                }
+            } else if (!file.delete() && file.exists()) {
+                log.warning("Failed to delete " + file.getAbsolutePath());
+                failures.add(file);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveHostLimiterTest {
+
+    private static final String HOST = "example.com";
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final URL url;
+
+    public AdaptiveHostLimiterTest() throws Exception {
+        url = new URL("http://" + HOST + "/file");
+    }
+
+    /**
+     * Fill the current limit and then let every request succeed, which
+     * grows the limit once.
+     */
+    private void succeedRound(AdaptiveHostLimiter limiter) throws InterruptedException {
+        List<AdaptiveHostLimiter.Permit> permits = new ArrayList<AdaptiveHostLimiter.Permit>();
+        int limit = limiter.getLimit(HOST);
+        for (int i = 0; i < limit; i++) {
+            permits.add(limiter.acquire(url));
+        }
+        for (AdaptiveHostLimiter.Permit permit : permits) {
+            permit.success(1024);
+        }
+    }
+
+    private void fail(AdaptiveHostLimiter limiter, int responseCode) throws InterruptedException {
+        limiter.acquire(url).failure(responseCode);
+    }
+
+    @Test
+    public void testStartsAtInitialLimit() {
+        assertEquals(4, new AdaptiveHostLimiter(4, 10, ticker).getLimit(HOST));
+        assertEquals(10, new AdaptiveHostLimiter(20, 10, ticker).getLimit(HOST));
+        assertEquals(1, new AdaptiveHostLimiter(0, 10, ticker).getLimit(HOST));
+    }
+
+    @Test
+    public void testGrowsAfterSuccesses() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(2, 10, ticker);
+
+        // Each full round adds 1 / limit: 2 -> 2.5 -> 2.9 -> 3.24
+        succeedRound(limiter);
+        succeedRound(limiter);
+        assertEquals(2, limiter.getLimit(HOST));
+        succeedRound(limiter);
+        assertEquals(3, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void testDoesNotGrowWhileUnderused() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(2, 10, ticker);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(url).success(1024);
+        }
+        assertEquals(2, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void testGrowsNoHigherThanMax() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(2, 3, ticker);
+
+        for (int i = 0; i < 20; i++) {
+            succeedRound(limiter);
+        }
+        assertEquals(3, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void testErrorBacksOff() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(8, 8, ticker);
+
+        fail(limiter, 500);
+        assertEquals(6, limiter.getLimit(HOST));
+        ticker.advance(WINDOW);
+        fail(limiter, -1);
+        assertEquals(4, limiter.getLimit(HOST)); // 4.5
+    }
+
+    @Test
+    public void testThrottlingBacksOffHarder() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(8, 8, ticker);
+
+        fail(limiter, 429);
+        assertEquals(4, limiter.getLimit(HOST));
+        ticker.advance(WINDOW);
+        fail(limiter, 503);
+        assertEquals(2, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void testBacksOffOncePerWindow() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(8, 8, ticker);
+
+        fail(limiter, 429);
+        fail(limiter, 429);
+        fail(limiter, 500);
+        assertEquals(4, limiter.getLimit(HOST));
+
+        ticker.advance(WINDOW / 2);
+        fail(limiter, 429);
+        assertEquals(4, limiter.getLimit(HOST));
+
+        ticker.advance(WINDOW / 2);
+        fail(limiter, 429);
+        assertEquals(2, limiter.getLimit(HOST));
+    }
+
+    @Test
+    public void testNeverBelowOne() throws InterruptedException {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(2, 8, ticker);
+
+        for (int i = 0; i < 5; i++) {
+            fail(limiter, 429);
+            ticker.advance(WINDOW);
+        }
+        assertEquals(1, limiter.getLimit(HOST));
+
+        // Still lets a request through
+        limiter.acquire(url).success(1024);
+    }
+
+    @Test
+    public void testHostsAreSeparate() throws Exception {
+        AdaptiveHostLimiter limiter = new AdaptiveHostLimiter(8, 8, ticker);
+
+        limiter.acquire(new URL("http://other.example.com/file")).failure(429);
+        assertEquals(8, limiter.getLimit(HOST));
+        assertEquals(4, limiter.getLimit("other.example.com"));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long now = TimeUnit.DAYS.toNanos(1);
+
+        @Override
+        public long read() {
+            return now;
+        }
+
+        private void advance(long nanos) {
+            now += nanos;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import lombok.extern.java.Log;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old fixed limit of six downloads per host with the
+ * adaptive limit, downloading from a local server that adds a delay to
+ * every response like a remote one would. It measures wall clock time, so
+ * it is not part of the tests; run it with the <code>benchmark</code> task.
+ */
+@Log
+public class HttpDownloaderBenchmark {
+
+    private static final int FIXED_LIMIT = 6;
+    private static final int SMALL_COUNT = 1000;
+    private static final int SMALL_SIZE = 4 * 1024;
+    private static final int LARGE_SIZE = 64 * 1024 * 1024;
+    private static final long LATENCY = 20;
+    private static final int RUNS = 3;
+
+    private final Random random = new Random(0);
+    private final LocalFileServer server;
+    private final byte[] smallData;
+    private final byte[] largeData;
+    private final File baseDir;
+
+    private HttpDownloaderBenchmark() throws IOException {
+        server = new LocalFileServer();
+        server.setLatency(LATENCY);
+        smallData = new byte[SMALL_SIZE];
+        random.nextBytes(smallData);
+        largeData = new byte[LARGE_SIZE];
+        random.nextBytes(largeData);
+        baseDir = Files.createTempDir();
+    }
+
+    private long downloadSmall(int threadCount) throws Exception {
+        HttpDownloader downloader = new HttpDownloader(new File(baseDir, String.valueOf(System.nanoTime())));
+        downloader.setThreadCount(threadCount);
+
+        String hash = Hashing.sha1().hashBytes(smallData).toString();
+        for (int i = 0; i < SMALL_COUNT; i++) {
+            URL url = server.put("/small/" + i, smallData);
+            downloader.download(url, "", SMALL_SIZE, null, hash);
+        }
+
+        long start = System.nanoTime();
+        downloader.execute();
+        return System.nanoTime() - start;
+    }
+
+    private long downloadLarge(int threadCount) throws Exception {
+        HttpDownloader downloader = new HttpDownloader(new File(baseDir, String.valueOf(System.nanoTime())));
+        downloader.setThreadCount(threadCount);
+
+        String hash = Hashing.sha1().hashBytes(largeData).toString();
+        URL url = server.put("/large", largeData);
+        downloader.download(url, "", LARGE_SIZE, null, hash);
+
+        long start = System.nanoTime();
+        downloader.execute();
+        return System.nanoTime() - start;
+    }
+
+    private void run() throws Exception {
+        int adaptive = new HttpDownloader(baseDir).getThreadCount();
+
+        for (int i = 0; i < RUNS; i++) {
+            report(SMALL_COUNT + " small files", downloadSmall(FIXED_LIMIT), downloadSmall(adaptive));
+            report("one " + (LARGE_SIZE / 1024 / 1024) + " MB file", downloadLarge(FIXED_LIMIT), downloadLarge(adaptive));
+        }
+    }
+
+    private static void report(String what, long fixed, long adaptive) {
+        log.info(String.format("%s: %d ms with a fixed limit of %d, %d ms with the adaptive limit (%.2fx)",
+                what, TimeUnit.NANOSECONDS.toMillis(fixed), FIXED_LIMIT, TimeUnit.NANOSECONDS.toMillis(adaptive),
+                fixed / (double) adaptive));
+    }
+
+    public static void main(String[] args) throws Exception {
+        HttpDownloaderBenchmark benchmark = new HttpDownloaderBenchmark();
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.server.stop();
+            FileUtils.deleteDirectory(benchmark.baseDir);
+        }
+    }
+
+}
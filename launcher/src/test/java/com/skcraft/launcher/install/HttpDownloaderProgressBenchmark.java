@@ -0,0 +1,235 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares how the progress of {@link HttpDownloader} held up when every
+ * job update and every poll took the downloader's lock, as it used to,
+ * with the lock-free bookkeeping it uses now. Jobs start, report progress
+ * and finish as fast as they can while other threads keep calling
+ * <code>getProgress()</code> and <code>getStatus()</code>, and the number
+ * of each done per second is reported. The two trackers below copy the
+ * bookkeeping of the downloader before and after the change, without the
+ * downloading. Contention only shows with several cores, since on one
+ * core the threads mostly take turns. It measures wall clock time, so it
+ * is not part of the tests; run it with the <code>benchmark</code> task.
+ */
+@Log
+public class HttpDownloaderProgressBenchmark {
+
+    private static final int MAX_STATUS_JOBS = 6;
+    private static final int JOB_THREADS = 32;
+    private static final int POLL_THREADS = 2;
+    private static final int UPDATES_PER_JOB = 16;
+    private static final long DURATION = TimeUnit.SECONDS.toNanos(3);
+    private static final int RUNS = 3;
+
+    private interface Tracker {
+        void start(Job job);
+
+        void finish(Job job);
+
+        double getProgress();
+
+        String getStatus();
+    }
+
+    private static class Job {
+        private final long size;
+        private volatile long done;
+
+        private Job(long size) {
+            this.size = size;
+        }
+
+        private double getProgress() {
+            return done / (double) size;
+        }
+
+        private String getStatus() {
+            return String.format("%.0f%%", getProgress() * 100);
+        }
+    }
+
+    /**
+     * The bookkeeping from before, where everything is guarded by the
+     * downloader's lock.
+     */
+    private static class LockedTracker implements Tracker {
+        private final List<Job> running = new ArrayList<Job>();
+        private final List<Job> failed = new ArrayList<Job>();
+        private long downloaded;
+        private long total = Long.MAX_VALUE;
+        private int left;
+
+        @Override
+        public synchronized void start(Job job) {
+            running.add(job);
+        }
+
+        @Override
+        public void finish(Job job) {
+            synchronized (this) {
+                downloaded += job.size;
+            }
+            synchronized (this) {
+                left--;
+                running.remove(job);
+            }
+        }
+
+        @Override
+        public synchronized double getProgress() {
+            long downloaded = this.downloaded;
+            for (Job job : running) {
+                downloaded += Math.max(0, job.getProgress() * job.size);
+            }
+            return downloaded / (double) total;
+        }
+
+        @Override
+        public synchronized String getStatus() {
+            StringBuilder builder = new StringBuilder();
+            for (Job job : running.subList(0, Math.min(running.size(), MAX_STATUS_JOBS))) {
+                builder.append("\n");
+                builder.append(job.getStatus());
+            }
+            return String.format("%d left, %d failed", left, failed.size()) + builder.toString();
+        }
+    }
+
+    /**
+     * The bookkeeping from now, which doesn't take any lock.
+     */
+    private static class LockFreeTracker implements Tracker {
+        private final Queue<Job> running = new ConcurrentLinkedQueue<Job>();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicLong total = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicInteger left = new AtomicInteger();
+
+        @Override
+        public void start(Job job) {
+            running.add(job);
+        }
+
+        @Override
+        public void finish(Job job) {
+            running.remove(job);
+            downloaded.addAndGet(job.size);
+            left.decrementAndGet();
+        }
+
+        @Override
+        public double getProgress() {
+            long downloaded = this.downloaded.get();
+            for (Job job : running) {
+                downloaded += Math.max(0, job.getProgress() * job.size);
+            }
+            return downloaded / (double) total.get();
+        }
+
+        @Override
+        public String getStatus() {
+            int failed = this.failed.get();
+            List<Job> running = new ArrayList<Job>(MAX_STATUS_JOBS);
+            for (Job job : this.running) {
+                if (running.size() >= MAX_STATUS_JOBS) break;
+                running.add(job);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (Job job : running) {
+                builder.append("\n");
+                builder.append(job.getStatus());
+            }
+            return String.format("%d left, %d failed", left.get(), failed) + builder.toString();
+        }
+    }
+
+    private static void measure(String name, final Tracker tracker) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        // Counted with adders so that counting doesn't add contention of its own
+        final LongAdder jobs = new LongAdder();
+        final LongAdder polls = new LongAdder();
+        final CountDownLatch ready = new CountDownLatch(JOB_THREADS + POLL_THREADS);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < JOB_THREADS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    while (!stop.get()) {
+                        Job job = new Job(UPDATES_PER_JOB);
+                        tracker.start(job);
+                        for (int j = 1; j <= UPDATES_PER_JOB; j++) {
+                            job.done = j;
+                        }
+                        tracker.finish(job);
+                        jobs.increment();
+                    }
+                }
+            }));
+        }
+
+        for (int i = 0; i < POLL_THREADS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    while (!stop.get()) {
+                        tracker.getProgress();
+                        tracker.getStatus();
+                        polls.increment();
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        long jobsAtStart = jobs.sum();
+        long pollsAtStart = polls.sum();
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DURATION));
+        long elapsed = System.nanoTime() - start;
+        long jobCount = jobs.sum() - jobsAtStart;
+        long pollCount = polls.sum() - pollsAtStart;
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        log.info(String.format("%s: %.0f jobs/s and %.0f polls/s with %d job threads and %d polling threads",
+                name, jobCount / seconds, pollCount / seconds, JOB_THREADS, POLL_THREADS));
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < RUNS; i++) {
+            measure("Locked", new LockedTracker());
+            measure("Lock-free", new LockFreeTracker());
+        }
+    }
+
+}
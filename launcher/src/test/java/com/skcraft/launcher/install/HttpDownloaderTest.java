@@ -0,0 +1,126 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpDownloaderTest {
+
+    private static final int SEGMENT_THRESHOLD = 1024 * 1024;
+    private static final int SEGMENT_COUNT = 4;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Random random = new Random(0);
+    private LocalFileServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalFileServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private byte[] createData(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private HttpDownloader createDownloader() throws IOException {
+        HttpDownloader downloader = new HttpDownloader(temp.newFolder());
+        downloader.setSegmentThreshold(SEGMENT_THRESHOLD);
+        downloader.setSegmentCount(SEGMENT_COUNT);
+        downloader.setTryCount(1);
+        return downloader;
+    }
+
+    private static String hash(byte[] data) {
+        return Hashing.sha1().hashBytes(data).toString();
+    }
+
+    @Test
+    public void testManySmallFiles() throws Exception {
+        HttpDownloader downloader = createDownloader();
+        List<byte[]> data = new ArrayList<byte[]>();
+        List<File> files = new ArrayList<File>();
+
+        for (int i = 0; i < 100; i++) {
+            byte[] fileData = createData(4 * 1024 + i);
+            URL url = server.put("/small/" + i, fileData);
+            data.add(fileData);
+            files.add(downloader.download(url, "", fileData.length, null, hash(fileData)));
+        }
+
+        downloader.execute();
+
+        for (int i = 0; i < files.size(); i++) {
+            assertArrayEquals(data.get(i), Files.toByteArray(files.get(i)));
+        }
+        assertEquals(0, server.getRangeRequests().get());
+    }
+
+    @Test
+    public void testLargeFileIsSegmented() throws Exception {
+        HttpDownloader downloader = createDownloader();
+        byte[] data = createData(SEGMENT_THRESHOLD * 4 + 123);
+        URL url = server.put("/large", data);
+
+        File file = downloader.download(url, "", data.length, null, hash(data));
+        downloader.execute();
+
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertTrue("Expected the file to be fetched in several ranges", server.getRangeRequests().get() > 1);
+        assertEquals(server.getRequests().get(), server.getRangeRequests().get());
+    }
+
+    @Test
+    public void testLargeFileWithoutRangeSupport() throws Exception {
+        server.setRangesSupported(false);
+        HttpDownloader downloader = createDownloader();
+        byte[] data = createData(SEGMENT_THRESHOLD * 2);
+        URL url = server.put("/large", data);
+
+        File file = downloader.download(url, "", data.length, null, hash(data));
+        downloader.execute();
+
+        assertArrayEquals(data, Files.toByteArray(file));
+        assertEquals(1, server.getRequests().get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongHashFails() throws Exception {
+        HttpDownloader downloader = createDownloader();
+        byte[] data = createData(1024);
+        URL url = server.put("/file", data);
+
+        downloader.download(url, "", data.length, null, hash(createData(1024)));
+        downloader.execute();
+    }
+
+}
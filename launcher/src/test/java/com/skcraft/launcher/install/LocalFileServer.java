@@ -0,0 +1,113 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.install;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP server for download tests, which serves files from memory,
+ * optionally answers <code>Range</code> requests, and can add a fixed
+ * delay to every response like a remote server would have.
+ */
+class LocalFileServer implements HttpHandler {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+    @Getter private final AtomicInteger requests = new AtomicInteger();
+    @Getter private final AtomicInteger rangeRequests = new AtomicInteger();
+    @Getter @Setter private volatile boolean rangesSupported = true;
+    @Getter @Setter private volatile long latency;
+
+    LocalFileServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Serve the given data at a path.
+     *
+     * @param path the path, starting with a slash
+     * @param data the data
+     * @return the URL of the file
+     */
+    URL put(String path, byte[] data) throws MalformedURLException {
+        files.put(path, data);
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            byte[] data = files.get(exchange.getRequestURI().getPath());
+            if (data == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            int start = 0;
+            int end = data.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range != null ? RANGE_PATTERN.matcher(range) : null;
+
+            if (rangesSupported && matcher != null && matcher.matches()) {
+                rangeRequests.incrementAndGet();
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+            }
+
+            OutputStream out = exchange.getResponseBody();
+            out.write(data, start, end - start + 1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
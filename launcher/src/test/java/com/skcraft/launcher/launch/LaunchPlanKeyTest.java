@@ -0,0 +1,172 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010-2014 Albert Pham <http://www.sk89q.com> and contributors
+ * Please see LICENSE.txt for license information.
+ */
+
+package com.skcraft.launcher.launch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.skcraft.launcher.Configuration;
+import com.skcraft.launcher.Instance;
+import com.skcraft.launcher.launch.runtime.JavaRuntime;
+import com.skcraft.launcher.model.modpack.LaunchModifier;
+import com.skcraft.launcher.util.Environment;
+import com.skcraft.launcher.util.Platform;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class LaunchPlanKeyTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private String launcherVersion;
+    private Environment environment;
+    private File librariesDir;
+    private File assetsDir;
+    private Instance instance;
+    private Configuration config;
+    private JavaRuntime runtime;
+
+    @Before
+    public void setUp() throws IOException {
+        launcherVersion = "1.0.0";
+        environment = new Environment(Platform.LINUX, "5.0", "amd64");
+        librariesDir = temp.newFolder("libraries");
+        assetsDir = temp.newFolder("assets");
+        instance = createInstance("instance");
+        config = new Configuration();
+        runtime = new JavaRuntime(temp.newFolder("jre"), "1.8.0_312", true);
+    }
+
+    private Instance createInstance(String name) throws IOException {
+        Instance instance = new Instance();
+        instance.setName(name);
+        instance.setDir(temp.newFolder(name));
+        instance.setLaunchModifier(new LaunchModifier());
+        Files.write("{}", instance.getVersionPath(), Charsets.UTF_8);
+        return instance;
+    }
+
+    private String createKey() throws IOException {
+        return Runner.createLaunchPlanKey(mapper, launcherVersion, environment, librariesDir, assetsDir,
+                instance, config, runtime);
+    }
+
+    @Test
+    public void testSameInputs() throws IOException {
+        assertEquals(createKey(), createKey());
+    }
+
+    @Test
+    public void testLauncherVersion() throws IOException {
+        String key = createKey();
+        launcherVersion = "1.0.1";
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testEnvironment() throws IOException {
+        String key = createKey();
+        environment = new Environment(Platform.LINUX, "5.0", "x86");
+        assertNotEquals(key, createKey());
+        key = createKey();
+        environment = new Environment(Platform.WINDOWS, "5.0", "x86");
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testLibrariesDir() throws IOException {
+        String key = createKey();
+        librariesDir = temp.newFolder("libraries2");
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testAssetsDir() throws IOException {
+        String key = createKey();
+        assetsDir = temp.newFolder("assets2");
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testVersionManifest() throws IOException {
+        String key = createKey();
+        Files.write("{\"id\":\"1.20.1\"}", instance.getVersionPath(), Charsets.UTF_8);
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testCustomJar() throws IOException {
+        String key = createKey();
+        Files.write(new byte[] { 1, 2, 3 }, instance.getCustomJarPath());
+        assertNotEquals(key, createKey());
+        key = createKey();
+        Files.write(new byte[] { 1, 2, 3, 4 }, instance.getCustomJarPath());
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testInstanceDir() throws IOException {
+        String key = createKey();
+        instance = createInstance("instance2");
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testInstanceSettings() throws IOException {
+        String key = createKey();
+        instance.getSettings().setCustomJvmArgs("-Xss2M");
+        assertNotEquals(key, createKey());
+        key = createKey();
+        instance.getSettings().setMemorySettings(new MemorySettings());
+        assertNotEquals(key, createKey());
+        key = createKey();
+        instance.getSettings().setRuntime(runtime);
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testLaunchModifier() throws IOException {
+        String key = createKey();
+        instance.getLaunchModifier().setFlags(Lists.newArrayList("-Dfoo=bar"));
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testConfiguration() throws IOException {
+        String key = createKey();
+        config.setWindowWidth(1280);
+        assertNotEquals(key, createKey());
+        key = createKey();
+        config.setJvmArgs("-XX:+UseG1GC");
+        assertNotEquals(key, createKey());
+        key = createKey();
+        config.setServerEnabled(true);
+        assertNotEquals(key, createKey());
+    }
+
+    @Test
+    public void testRuntime() throws IOException {
+        String key = createKey();
+        runtime = new JavaRuntime(temp.newFolder("jre2"), "1.8.0_312", true);
+        assertNotEquals(key, createKey());
+        key = createKey();
+        runtime = null;
+        assertNotEquals(key, createKey());
+    }
+
+}